@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe least recently used cache bounded by the total weight of its values, e.g. bytes.
+ * Keys are spread over segments, each an access-ordered map with its own lock, so lookups of
+ * different keys rarely wait for each other. The weight is shared by all segments: a put that
+ * exceeds the budget evicts the least recently used values of its own segment first, then of
+ * the following ones. Concurrent misses on the same key wait for a single load.
+ */
+public class BoundedCache<K, V> {
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final List<Segment<K, V>> segments;
+    private final ToLongFunction<V> weigher;
+    private final long budget;
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+    // Loads in progress, a miss on a key being loaded waits for that load
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+    private static class Segment<K, V> {
+        final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @param budget: maximum total weight of the cached values
+     * @param weigher: weight of a value
+     */
+    public BoundedCache(long budget, ToLongFunction<V> weigher) {
+        this(budget, weigher, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param budget: maximum total weight of the cached values
+     * @param weigher: weight of a value
+     * @param segments: number of independently locked segments, rounded up to a power of two.
+     *                  A single segment evicts in exact least recently used order
+     */
+    public BoundedCache(long budget, ToLongFunction<V> weigher, int segments) {
+        this.budget = budget;
+        this.weigher = weigher;
+        int count = segments <= 1 ? 1 : Integer.highestOneBit(segments - 1) << 1;
+        this.segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            this.segments.add(new Segment<>());
+    }
+
+    /**
+     * Returns the cached value of a key
+     * @param key: key
+     * @return value, null if the key is not cached
+     */
+    public V get(K key) {
+        V value = peek(key);
+        if (value == null)
+            misses.increment();
+        else
+            hits.increment();
+        return value;
+    }
+
+    /**
+     * Returns the cached value of a key without counting a hit or a miss
+     * @param key: key
+     * @return value, null if the key is not cached
+     */
+    public V peek(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            return segment.entries.get(key);
+        }
+    }
+
+    /**
+     * Returns the cached value of a key, loading and caching it on a miss. Threads missing a key
+     * that is being loaded wait for that load instead of repeating it
+     * @param key: key
+     * @param loader: computes the value, may return null which is not cached
+     * @return value
+     */
+    public V get(K key, Function<K, V> loader) {
+        V value = get(key);
+        if (value != null)
+            return value;
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        try {
+            // A load may have finished between the miss and taking over the key
+            value = peek(key);
+            if (value == null) {
+                value = loader.apply(key);
+                if (value != null)
+                    put(key, value);
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Cache a value, evicting the least recently used ones until the budget is met.
+     * Values heavier than the whole budget are not cached.
+     * @param key: key
+     * @param value: value
+     */
+    public void put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > budget)
+            return;
+        int home = indexOf(key);
+        Segment<K, V> segment = segments.get(home);
+        synchronized (segment) {
+            V previous = segment.entries.put(key, value);
+            weight.addAndGet(previous == null ? valueWeight : valueWeight - weigher.applyAsLong(previous));
+        }
+        for (int i = 0; i < segments.size() && weight.get() > budget; i++)
+            evict(segments.get((home + i) & (segments.size() - 1)), key);
+    }
+
+    /**
+     * Evict the least recently used values of a segment while the cache is over budget
+     * @param segment: segment to evict from
+     * @param keep: key just put, which is not evicted
+     */
+    private void evict(Segment<K, V> segment, K keep) {
+        synchronized (segment) {
+            Iterator<Map.Entry<K, V>> iterator = segment.entries.entrySet().iterator();
+            while (weight.get() > budget && iterator.hasNext()) {
+                Map.Entry<K, V> entry = iterator.next();
+                if (entry.getKey().equals(keep))
+                    continue;
+                weight.addAndGet(-weigher.applyAsLong(entry.getValue()));
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public boolean containsKey(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            return segment.entries.containsKey(key);
+        }
+    }
+
+    /**
+     * Remove every value
+     */
+    public void invalidateAll() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                long removed = 0;
+                for (V value : segment.entries.values())
+                    removed += weigher.applyAsLong(value);
+                segment.entries.clear();
+                weight.addAndGet(-removed);
+            }
+        }
+    }
+
+    /**
+     * Returns the counters of the cache
+     * @return (Map) size, weight, budget, hits, misses, hit ratio and evictions
+     */
+    public Map<String, Object> stats() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        long hitCount = hits.sum(), missCount = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size);
+        stats.put("weight", weight.get());
+        stats.put("budget", budget);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hit_ratio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.put("evictions", evictions.sum());
+        return stats;
+    }
+
+    private Segment<K, V> segmentOf(K key) {
+        return segments.get(indexOf(key));
+    }
+
+    private int indexOf(K key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (segments.size() - 1);
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Immutable compressed-sparse-row copy of a Graph. Vertices get dense indices in ascending id order
+ * and the outgoing edges of vertex v are the edge indices in [firstEdge(v), lastEdge(v)).
+ * Way names are interned into a side table that edges point into.
+ */
+public class CompactGraph {
+    private final long[] ids;
+    private final double[] lats, lons;
+    private final int[] offsets;
+    private final int[] targets;
+    private final double[] weights;
+    private final int[] names;
+    private final String[] wayNames;
+    // Reverse adjacency, the incoming edges of vertex v are [firstReverseEdge(v), lastReverseEdge(v))
+    private final int[] reverseOffsets;
+    private final int[] reverseSources;
+    private final double[] reverseWeights;
+
+    CompactGraph(long[] ids, double[] lats, double[] lons, int[] offsets, int[] targets,
+                 double[] weights, int[] names, String[] wayNames) {
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+        this.names = names;
+        this.wayNames = wayNames;
+
+        // Count incoming edges per vertex, then place each edge under its target
+        int n = ids.length;
+        reverseOffsets = new int[n + 1];
+        for (int target : targets)
+            reverseOffsets[target + 1]++;
+        for (int v = 0; v < n; v++)
+            reverseOffsets[v + 1] += reverseOffsets[v];
+        reverseSources = new int[targets.length];
+        reverseWeights = new double[targets.length];
+        int[] next = Arrays.copyOf(reverseOffsets, n);
+        for (int u = 0; u < n; u++) {
+            for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+                int slot = next[targets[e]]++;
+                reverseSources[slot] = u;
+                reverseWeights[slot] = weights[e];
+            }
+        }
+    }
+
+    /**
+     * Copy the vertices and edges of the graph into a compact representation
+     * @param graph: graph object
+     * @return (CompactGraph) frozen graph
+     */
+    public static CompactGraph freeze(Graph graph) {
+        Vertex[] vertices = graph.getVertices();
+        Arrays.sort(vertices, Comparator.comparing(Vertex::getId));
+        int n = vertices.length;
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            ids[i] = vertices[i].getId();
+            lats[i] = vertices[i].getLat();
+            lons[i] = vertices[i].getLng();
+            offsets[i + 1] = offsets[i] + graph.edgesFrom(vertices[i]).size();
+        }
+
+        int m = offsets[n];
+        int[] targets = new int[m];
+        double[] weights = new double[m];
+        int[] names = new int[m];
+        HashMap<String, Integer> nameIndex = new HashMap<>();
+        ArrayList<String> wayNames = new ArrayList<>();
+        int e = 0;
+        for (Vertex vertex : vertices) {
+            // Keep the insertion order of edges so searches break ties the same way
+            for (Edge edge : graph.edgesFrom(vertex)) {
+                targets[e] = Arrays.binarySearch(ids, edge.getDestination().getId());
+                weights[e] = edge.getWeight();
+                String name = edge.getName();
+                if (name == null) {
+                    names[e] = -1;
+                } else {
+                    Integer index = nameIndex.get(name);
+                    if (index == null) {
+                        index = wayNames.size();
+                        nameIndex.put(name, index);
+                        wayNames.add(name);
+                    }
+                    names[e] = index;
+                }
+                e++;
+            }
+        }
+        return new CompactGraph(ids, lats, lons, offsets, targets, weights, names, wayNames.toArray(new String[0]));
+    }
+
+    /**
+     * Returns the number of vertices
+     * @return (int) vertex count
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the number of edges
+     * @return (int) edge count
+     */
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * Returns the dense index of the vertex with given id
+     * @param id: vertex id
+     * @return (int) vertex index, -1 if the graph does not contain the vertex
+     */
+    public int indexOf(long id) {
+        int index = Arrays.binarySearch(ids, id);
+        return index < 0 ? -1 : index;
+    }
+
+    public long id(int v) {
+        return ids[v];
+    }
+
+    public double lat(int v) {
+        return lats[v];
+    }
+
+    public double lon(int v) {
+        return lons[v];
+    }
+
+    /**
+     * Returns the index of the first outgoing edge of a vertex
+     * @param v: vertex index
+     * @return (int) edge index
+     */
+    public int firstEdge(int v) {
+        return offsets[v];
+    }
+
+    /**
+     * Returns the index after the last outgoing edge of a vertex
+     * @param v: vertex index
+     * @return (int) edge index
+     */
+    public int lastEdge(int v) {
+        return offsets[v + 1];
+    }
+
+    public int target(int e) {
+        return targets[e];
+    }
+
+    public double weight(int e) {
+        return weights[e];
+    }
+
+    /**
+     * Returns the index of the first incoming edge of a vertex
+     * @param v: vertex index
+     * @return (int) reverse edge index
+     */
+    public int firstReverseEdge(int v) {
+        return reverseOffsets[v];
+    }
+
+    /**
+     * Returns the index after the last incoming edge of a vertex
+     * @param v: vertex index
+     * @return (int) reverse edge index
+     */
+    public int lastReverseEdge(int v) {
+        return reverseOffsets[v + 1];
+    }
+
+    public int reverseSource(int e) {
+        return reverseSources[e];
+    }
+
+    public double reverseWeight(int e) {
+        return reverseWeights[e];
+    }
+
+    /**
+     * Returns the name of the way an edge belongs to
+     * @param e: edge index
+     * @return (String) way name, null if the way has no name
+     */
+    public String name(int e) {
+        return names[e] < 0 ? null : wayNames[names[e]];
+    }
+
+    /**
+     * Return the euclidean distance between two vertices, same as GraphDB.distance
+     * @param u: first vertex index
+     * @param v: second vertex index
+     * @return (double) distance
+     */
+    public double distance(int u, int v) {
+        return distance(lats[u], lons[u], lats[v], lons[v]);
+    }
+
+    /**
+     * Return the euclidean distance between two points, the weight of an edge between them
+     * @param lat1: latitude of the first point
+     * @param lon1: longitude of the first point
+     * @param lat2: latitude of the second point
+     * @param lon2: longitude of the second point
+     * @return (double) distance
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double lat = (lat1-lat2);
+        double lon = (lon1-lon2);
+        return Math.sqrt(Math.pow(lat,2)+Math.pow(lon,2));
+    }
+
+    /**
+     * Hash of the vertices and edges, used to check that data derived from a graph belongs to it
+     * @return (long) fingerprint
+     */
+    public long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, ids.length);
+        hash = mix(hash, targets.length);
+        for (int v = 0; v < ids.length; v++) {
+            hash = mix(hash, ids[v]);
+            hash = mix(hash, offsets[v + 1]);
+        }
+        for (int e = 0; e < targets.length; e++) {
+            hash = mix(hash, targets[e]);
+            hash = mix(hash, Double.doubleToLongBits(weights[e]));
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    /**
+     * Write the arrays of the graph, the reverse adjacency is rebuilt when reading
+     * @param out: output stream
+     * @throws IOException if the stream cannot be written
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(ids.length);
+        out.writeInt(targets.length);
+        out.writeInt(wayNames.length);
+        for (long id : ids)
+            out.writeLong(id);
+        for (double lat : lats)
+            out.writeDouble(lat);
+        for (double lon : lons)
+            out.writeDouble(lon);
+        for (int offset : offsets)
+            out.writeInt(offset);
+        for (int target : targets)
+            out.writeInt(target);
+        for (double weight : weights)
+            out.writeDouble(weight);
+        for (int name : names)
+            out.writeInt(name);
+        for (String wayName : wayNames)
+            writeString(out, wayName);
+    }
+
+    /**
+     * Read a graph written by write(), advancing the buffer past it
+     * @param in: big-endian buffer positioned at the graph
+     * @return (CompactGraph) graph
+     */
+    static CompactGraph read(ByteBuffer in) {
+        int n = in.getInt();
+        int m = in.getInt();
+        int nameCount = in.getInt();
+        // Counts of a corrupt buffer must not allocate more than the buffer could hold
+        if (n < 0 || m < 0 || nameCount < 0 || 28L * n + 4 + 16L * m + 4L * nameCount > in.remaining())
+            throw new BufferUnderflowException();
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[m];
+        double[] weights = new double[m];
+        int[] names = new int[m];
+        String[] wayNames = new String[nameCount];
+        // Bulk copies through typed views, then skip the buffer past what they consumed
+        in.asLongBuffer().get(ids);
+        in.position(in.position() + 8 * n);
+        in.asDoubleBuffer().get(lats);
+        in.position(in.position() + 8 * n);
+        in.asDoubleBuffer().get(lons);
+        in.position(in.position() + 8 * n);
+        in.asIntBuffer().get(offsets);
+        in.position(in.position() + 4 * (n + 1));
+        in.asIntBuffer().get(targets);
+        in.position(in.position() + 4 * m);
+        in.asDoubleBuffer().get(weights);
+        in.position(in.position() + 8 * m);
+        in.asIntBuffer().get(names);
+        in.position(in.position() + 4 * m);
+        for (int i = 0; i < nameCount; i++)
+            wayNames[i] = readString(in);
+        if (offsets[0] != 0 || offsets[n] != m)
+            throw new IllegalArgumentException("Corrupt edge offsets");
+        for (int v = 0; v < n; v++)
+            if (offsets[v] > offsets[v + 1])
+                throw new IllegalArgumentException("Corrupt edge offsets");
+        for (int e = 0; e < m; e++)
+            if (targets[e] < 0 || targets[e] >= n || names[e] < -1 || names[e] >= nameCount)
+                throw new IllegalArgumentException("Corrupt edge " + e);
+        return new CompactGraph(ids, lats, lons, offsets, targets, weights, names, wayNames);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Build a spatial index whose positions are the vertex indices of this graph
+     * @return (SpatialIndex) index over the vertex coordinates
+     */
+    public SpatialIndex spatialIndex() {
+        return new SpatialIndex(lats, lons);
+    }
+}
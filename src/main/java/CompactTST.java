@@ -0,0 +1,355 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Read-only ternary search tree frozen from a TST into parallel arrays. Nodes are numbered in the
+ * order TST.valuesWithPrefix visits them, node then left, mid and right subtrees, so the subtree
+ * of a node is the range of indices [node, subtreeEnd(node)) and collecting the values under a
+ * prefix is a scan over that range. Each node also keeps the weight of its value and the largest
+ * weight in its subtree, so the heaviest values under a prefix are found without visiting the rest.
+ */
+public class CompactTST<Value> implements PrefixIndex<Value> {
+    private final char[] chars;
+    private final int[] left, mid, right;
+    // Index after the last node of each subtree
+    private final int[] subtreeEnd;
+    // Index into the value table, -1 for nodes without a value
+    private final int[] values;
+    private final Value[] table;
+    // Weight of the value of each node and the largest weight in each subtree, 0 where there is none
+    private final float[] weights, maxWeights;
+
+    private CompactTST(char[] chars, int[] left, int[] mid, int[] right, int[] subtreeEnd, int[] values, Value[] table,
+                       float[] weights, float[] maxWeights) {
+        this.chars = chars;
+        this.left = left;
+        this.mid = mid;
+        this.right = right;
+        this.subtreeEnd = subtreeEnd;
+        this.values = values;
+        this.table = table;
+        this.weights = weights;
+        this.maxWeights = maxWeights;
+    }
+
+    /**
+     * Copy the nodes of a tree into a compact one with the same structure, every value weighing the same
+     * @param tst: tree to copy
+     * @return (CompactTST) read-only tree
+     */
+    public static <Value> CompactTST<Value> freeze(TST<Value> tst) {
+        return freeze(tst, value -> 0.0);
+    }
+
+    /**
+     * Copy the nodes of a tree into a compact one with the same structure
+     * @param tst: tree to copy
+     * @param weight: rank of a value in top-k queries, higher first, must not be negative
+     * @return (CompactTST) read-only tree
+     */
+    @SuppressWarnings("unchecked")
+    public static <Value> CompactTST<Value> freeze(TST<Value> tst, ToDoubleFunction<Value> weight) {
+        ArrayList<TST.Node<Value>> nodes = new ArrayList<>();
+        ArrayList<Integer> parents = new ArrayList<>();
+        // Pre-order walk with an explicit stack since degenerate trees can be very deep.
+        // Each entry remembers the index of its parent and which child pointer leads to it
+        ArrayDeque<TST.Node<Value>> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> stackParents = new ArrayDeque<>();
+        if (tst.root != null) {
+            stack.push(tst.root);
+            stackParents.push(-1);
+        }
+        while (!stack.isEmpty()) {
+            TST.Node<Value> node = stack.pop();
+            int parent = stackParents.pop();
+            int index = nodes.size();
+            nodes.add(node);
+            parents.add(parent);
+            // Slot 0 is the right child, 1 the mid and 2 the left, pushed last so it is visited first
+            if (node.right != null) {
+                stack.push(node.right);
+                stackParents.push(index * 3);
+            }
+            if (node.mid != null) {
+                stack.push(node.mid);
+                stackParents.push(index * 3 + 1);
+            }
+            if (node.left != null) {
+                stack.push(node.left);
+                stackParents.push(index * 3 + 2);
+            }
+        }
+
+        int n = nodes.size();
+        char[] chars = new char[n];
+        int[] left = new int[n], mid = new int[n], right = new int[n];
+        int[] subtreeEnd = new int[n];
+        int[] values = new int[n];
+        float[] weights = new float[n], maxWeights = new float[n];
+        Arrays.fill(left, -1);
+        Arrays.fill(mid, -1);
+        Arrays.fill(right, -1);
+        IdentityHashMap<Value, Integer> valueIndex = new IdentityHashMap<>();
+        ArrayList<Value> table = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            TST.Node<Value> node = nodes.get(i);
+            chars[i] = node.c;
+            values[i] = -1;
+            if (node.val != null) {
+                Integer index = valueIndex.get(node.val);
+                if (index == null) {
+                    index = table.size();
+                    valueIndex.put(node.val, index);
+                    table.add(node.val);
+                }
+                values[i] = index;
+                // Adding zero turns -0 into 0, whose bits order correctly
+                weights[i] = (float) weight.applyAsDouble(node.val) + 0.0f;
+                if (!(weights[i] >= 0))
+                    throw new IllegalArgumentException("Weight of " + node.val + " is " + weights[i]);
+            }
+            int parent = parents.get(i);
+            if (parent >= 0) {
+                int slot = parent % 3;
+                int[] pointers = slot == 0 ? right : slot == 1 ? mid : left;
+                pointers[parent / 3] = i;
+            }
+        }
+        // Children come after their parent, so walking backwards finds their ends first
+        for (int i = n - 1; i >= 0; i--) {
+            int last = right[i] >= 0 ? right[i] : mid[i] >= 0 ? mid[i] : left[i];
+            subtreeEnd[i] = last >= 0 ? subtreeEnd[last] : i + 1;
+            maxWeights[i] = weights[i];
+            if (left[i] >= 0)
+                maxWeights[i] = Math.max(maxWeights[i], maxWeights[left[i]]);
+            if (mid[i] >= 0)
+                maxWeights[i] = Math.max(maxWeights[i], maxWeights[mid[i]]);
+            if (right[i] >= 0)
+                maxWeights[i] = Math.max(maxWeights[i], maxWeights[right[i]]);
+        }
+        return new CompactTST<>(chars, left, mid, right, subtreeEnd, values, (Value[]) table.toArray(),
+                weights, maxWeights);
+    }
+
+    /**
+     * Returns a list of values starting with the given prefix, the same as TST.valuesWithPrefix
+     * @param prefix: prefix of key
+     * @return list of values
+     */
+    @Override
+    public List<Value> valuesWithPrefix(String prefix) {
+        return valuesUnder(subtree(prefix));
+    }
+
+    /**
+     * Returns the values in the subtree of a node in the order of valuesWithPrefix
+     * @param node: node index from subtree, -1 for none
+     * @return list of values
+     */
+    public List<Value> valuesUnder(int node) {
+        ArrayList<Value> answer = new ArrayList<>();
+        if (node < 0)
+            return answer;
+        for (int i = node; i < subtreeEnd[node]; i++)
+            if (values[i] >= 0)
+                answer.add(table[values[i]]);
+        return answer;
+    }
+
+    /**
+     * Returns the heaviest values starting with the given prefix. Values of equal weight keep the
+     * order of valuesWithPrefix, so without weights these are its first limit values
+     * @param prefix: prefix of key
+     * @param limit: largest number of values returned
+     * @return list of values, heaviest first
+     */
+    @Override
+    public List<Value> valuesWithPrefix(String prefix, int limit) {
+        return valuesUnder(subtree(prefix), limit);
+    }
+
+    /**
+     * Returns the heaviest values in the subtree of a node
+     * @param node: node index from subtree, -1 for none
+     * @param limit: largest number of values returned
+     * @return list of values, heaviest first
+     */
+    public List<Value> valuesUnder(int node, int limit) {
+        ArrayList<Value> answer = new ArrayList<>();
+        if (node < 0 || limit <= 0)
+            return answer;
+        // Best-first search over subtrees bounded by their largest weight. An entry is a node's own
+        // value (kind 0) or its children's subtrees (kind 1), ordered by weight, then by position.
+        // Weights are not negative, so their float bits order the same way as the weights
+        LongMinHeap queue = new LongMinHeap(4 * Math.min(limit, 64));
+        queue.add(entry(maxWeights[node], node, 1));
+        while (!queue.isEmpty() && answer.size() < limit) {
+            long top = queue.poll();
+            int p = (int) (top >>> 1) & Integer.MAX_VALUE;
+            if ((top & 1) == 0) {
+                answer.add(table[values[p]]);
+                continue;
+            }
+            if (values[p] >= 0)
+                queue.add(entry(weights[p], p, 0));
+            if (left[p] >= 0)
+                queue.add(entry(maxWeights[left[p]], left[p], 1));
+            if (mid[p] >= 0)
+                queue.add(entry(maxWeights[mid[p]], mid[p], 1));
+            if (right[p] >= 0)
+                queue.add(entry(maxWeights[right[p]], right[p], 1));
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the values whose keys start with a string within the given edit distance of the prefix,
+     * so misspelled prefixes still find their names. Keys are matched by a depth-first walk that
+     * carries the edit distance row of the prefix against the key read so far, and skips a subtree
+     * once no key in it can come within the distance
+     * @param prefix: prefix of key, possibly misspelled
+     * @param maxDistance: largest number of inserted, deleted or replaced characters
+     * @return list of values, closest first and in the order of valuesWithPrefix between equals
+     */
+    public List<Value> valuesWithFuzzyPrefix(String prefix, int maxDistance) {
+        ArrayList<Value> answer = new ArrayList<>();
+        // If prefix is smaller than 2 characters, don't perform search
+        if (prefix.length() < 2 || chars.length == 0 || maxDistance < 0)
+            return answer;
+        int m = prefix.length();
+        int[] first = new int[m + 1];
+        for (int j = 0; j <= m; j++)
+            first[j] = j;
+        // Matches packed as distance << 32 | node, which sorts closest first, then in node order
+        ArrayList<Long> found = new ArrayList<>();
+        ArrayList<Frame> stack = new ArrayList<>();
+        stack.add(new Frame(0, first, m));
+        while (!stack.isEmpty()) {
+            Frame frame = stack.remove(stack.size() - 1);
+            int node = frame.node;
+            // Left and right siblings replace the character of this node, so they share its row
+            if (right[node] >= 0)
+                stack.add(new Frame(right[node], frame.row, frame.bound));
+            if (left[node] >= 0)
+                stack.add(new Frame(left[node], frame.row, frame.bound));
+
+            int[] previous = frame.row;
+            int[] row = new int[m + 1];
+            row[0] = previous[0] + 1;
+            int rowMin = row[0];
+            for (int j = 1; j <= m; j++) {
+                int replace = previous[j - 1] + (prefix.charAt(j - 1) == chars[node] ? 0 : 1);
+                row[j] = Math.min(replace, Math.min(previous[j], row[j - 1]) + 1);
+                rowMin = Math.min(rowMin, row[j]);
+            }
+            // Distance of the closest prefix of the key ending at this node
+            int distance = Math.min(frame.bound, row[m]);
+            if (values[node] >= 0 && distance <= maxDistance)
+                found.add((long) distance << 32 | node);
+            int child = mid[node];
+            if (child < 0 || Math.min(rowMin, distance) > maxDistance)
+                continue;
+            if (rowMin >= distance) {
+                // Longer keys cannot get closer, the whole subtree matches at this distance
+                for (int p = child; p < subtreeEnd[child]; p++)
+                    if (values[p] >= 0)
+                        found.add((long) distance << 32 | p);
+            } else {
+                stack.add(new Frame(child, row, distance));
+            }
+        }
+        Collections.sort(found);
+        for (long match : found)
+            answer.add(table[values[(int) match]]);
+        return answer;
+    }
+
+    /**
+     * Node waiting to be visited by the fuzzy search, with the edit distance row of the key before
+     * it and the distance of the closest prefix of that key
+     */
+    private static class Frame {
+        final int node;
+        final int[] row;
+        final int bound;
+
+        Frame(int node, int[] row, int bound) {
+            this.node = node;
+            this.row = row;
+            this.bound = bound;
+        }
+    }
+
+    private static long entry(float weight, int node, int kind) {
+        return ((long) (Integer.MAX_VALUE - Float.floatToIntBits(weight)) << 32) | ((long) node << 1) | kind;
+    }
+
+    /**
+     * Returns the node whose subtree holds the values starting with the given prefix
+     * @param prefix: prefix of key
+     * @return (int) node index, -1 if no value starts with the prefix or it is shorter than 2 characters
+     */
+    public int subtree(String prefix) {
+        // If prefix is smaller than 2 characters, don't perform search
+        if (prefix.length() < 2 || chars.length == 0)
+            return -1;
+        return subtree(0, prefix, 0);
+    }
+
+    /**
+     * Continue the walk of subtree from the node a shorter prefix ended at, so a prefix typed one
+     * character at a time is not walked from the root again
+     * @param node: node returned by subtree for prefix.substring(0, start), or 0 with start 0
+     * @param prefix: prefix of key
+     * @param start: number of characters of prefix already walked
+     * @return (int) node index, -1 if no value starts with the prefix
+     */
+    public int subtree(int node, String prefix, int start) {
+        int i = start;
+        // Iterate through the tree following prefix's path
+        while (i < prefix.length()) {
+            if (node < 0)
+                return -1;
+            if (prefix.charAt(i) == chars[node]) {
+                node = mid[node];
+                i++;
+            } else if (prefix.charAt(i) < chars[node]) {
+                node = left[node];
+            } else {
+                node = right[node];
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns the index after the last node in the subtree of a node
+     * @param node: node index
+     * @return (int) node index
+     */
+    public int subtreeEnd(int node) {
+        return subtreeEnd[node];
+    }
+
+    /**
+     * Returns the value stored at a node
+     * @param node: node index
+     * @return value, null if the node has none
+     */
+    public Value value(int node) {
+        return values[node] < 0 ? null : table[values[node]];
+    }
+
+    /**
+     * Returns the number of nodes
+     * @return (int) node count
+     */
+    public int size() {
+        return chars.length;
+    }
+}
@@ -0,0 +1,558 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Contraction hierarchy over a CompactGraph. Vertices are contracted one by one in order of
+ * importance and shortcuts keep the distances between the remaining vertices, so a query only
+ * needs a forward search from the start and a backward search from the destination, both going
+ * to higher ranked vertices. Shortcuts remember the two edges they replace and are unpacked back
+ * into the original vertices.
+ */
+public class ContractionHierarchy {
+    private static final int MAGIC = 0x4e434831;
+    // Witness searches stop after settling this many vertices, missing a witness only adds a shortcut.
+    // Estimating priorities runs far more searches than contracting, so it uses a tighter limit
+    private static final int WITNESS_SETTLE_LIMIT = 500, ESTIMATE_SETTLE_LIMIT = 50;
+
+    private final CompactGraph graph;
+    private final int[] rank;
+    // Edge table with the original edges and the shortcuts, a shortcut points at the two edges it replaces
+    private final int[] edgeFrom, edgeTo, edgeChild1, edgeChild2;
+    // Edges to higher ranked vertices, indexed by source
+    private final int[] upOffsets, upTargets, upEdges;
+    private final double[] upWeights;
+    // Edges from higher ranked vertices, indexed by target, the backward search follows them reversed
+    private final int[] downOffsets, downSources, downEdges;
+    private final double[] downWeights;
+
+    private ContractionHierarchy(CompactGraph graph, int[] rank, int[] edgeFrom, int[] edgeTo,
+                                 int[] edgeChild1, int[] edgeChild2, double[] edgeWeight,
+                                 int[] upOffsets, int[] upEdges, int[] downOffsets, int[] downEdges) {
+        this.graph = graph;
+        this.rank = rank;
+        this.edgeFrom = edgeFrom;
+        this.edgeTo = edgeTo;
+        this.edgeChild1 = edgeChild1;
+        this.edgeChild2 = edgeChild2;
+        this.upOffsets = upOffsets;
+        this.upEdges = upEdges;
+        this.downOffsets = downOffsets;
+        this.downEdges = downEdges;
+        // Copy targets and weights next to the adjacency so searches do not go through the edge table
+        upTargets = new int[upEdges.length];
+        upWeights = new double[upEdges.length];
+        for (int i = 0; i < upEdges.length; i++) {
+            upTargets[i] = edgeTo[upEdges[i]];
+            upWeights[i] = edgeWeight[upEdges[i]];
+        }
+        downSources = new int[downEdges.length];
+        downWeights = new double[downEdges.length];
+        for (int i = 0; i < downEdges.length; i++) {
+            downSources[i] = edgeFrom[downEdges[i]];
+            downWeights[i] = edgeWeight[downEdges[i]];
+        }
+    }
+
+    /**
+     * Contract every vertex of the graph
+     * @param graph: graph object
+     * @return (ContractionHierarchy) hierarchy ready for queries
+     */
+    public static ContractionHierarchy build(CompactGraph graph) {
+        return new Builder(graph).build();
+    }
+
+    /**
+     * Return the shortest path between two vertices
+     * @param start: start vertex index
+     * @param end: destination vertex index
+     * @return (int[]) vertex indices of the path, null if the destination is not reachable
+     */
+    public int[] shortestPath(int start, int end) {
+        if (start == end)
+            return new int[]{start};
+        // Parents are the hierarchy edges the vertices were reached through
+        SearchWorkspace forward = SearchWorkspace.forward(rank.length);
+        SearchWorkspace backward = SearchWorkspace.backward(rank.length);
+        forward.update(start, 0.0, -1);
+        forward.heap.pushOrDecrease(start, 0.0);
+        backward.update(end, 0.0, -1);
+        backward.heap.pushOrDecrease(end, 0.0);
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        // Alternate the directions, each one stops once it can no longer improve the best meeting point
+        while (!forward.heap.isEmpty() || !backward.heap.isEmpty()) {
+            if (!forward.heap.isEmpty()) {
+                if (forward.heap.peekKey() >= best) {
+                    forward.heap.clear();
+                } else {
+                    int u = forward.heap.pop();
+                    double d = forward.distance(u);
+                    if (d + backward.distance(u) < best) {
+                        best = d + backward.distance(u);
+                        meeting = u;
+                    }
+                    for (int i = upOffsets[u]; i < upOffsets[u + 1]; i++) {
+                        double nd = d + upWeights[i];
+                        if (nd < forward.distance(upTargets[i])) {
+                            forward.update(upTargets[i], nd, upEdges[i]);
+                            forward.heap.pushOrDecrease(upTargets[i], nd);
+                        }
+                    }
+                }
+            }
+            if (!backward.heap.isEmpty()) {
+                if (backward.heap.peekKey() >= best) {
+                    backward.heap.clear();
+                } else {
+                    int u = backward.heap.pop();
+                    double d = backward.distance(u);
+                    if (d + forward.distance(u) < best) {
+                        best = d + forward.distance(u);
+                        meeting = u;
+                    }
+                    for (int i = downOffsets[u]; i < downOffsets[u + 1]; i++) {
+                        double nd = d + downWeights[i];
+                        if (nd < backward.distance(downSources[i])) {
+                            backward.update(downSources[i], nd, downEdges[i]);
+                            backward.heap.pushOrDecrease(downSources[i], nd);
+                        }
+                    }
+                }
+            }
+        }
+        if (meeting < 0)
+            return null;
+
+        // Collect the hierarchy edges from start to the meeting vertex and from there to the destination
+        ArrayList<Integer> edges = new ArrayList<>();
+        for (int v = meeting; forward.parent(v) >= 0; v = edgeFrom[forward.parent(v)])
+            edges.add(forward.parent(v));
+        Collections.reverse(edges);
+        for (int v = meeting; backward.parent(v) >= 0; v = edgeTo[backward.parent(v)])
+            edges.add(backward.parent(v));
+
+        // Unpack shortcuts into original edges
+        int[] path = new int[16];
+        int length = 0;
+        path[length++] = start;
+        int[] stack = new int[16];
+        for (int edge : edges) {
+            int top = 0;
+            stack[top++] = edge;
+            while (top > 0) {
+                int e = stack[--top];
+                if (edgeChild1[e] < 0) {
+                    if (length == path.length)
+                        path = Arrays.copyOf(path, length * 2);
+                    path[length++] = edgeTo[e];
+                } else {
+                    if (top + 2 > stack.length)
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[top++] = edgeChild2[e];
+                    stack[top++] = edgeChild1[e];
+                }
+            }
+        }
+        return Arrays.copyOf(path, length);
+    }
+
+    /**
+     * Return the shortest path costs from every source to every target. Each target runs one
+     * backward upward search and leaves its distances in buckets at the vertices it settles,
+     * then each source runs one forward upward search and combines its distances with the buckets
+     * it finds. Both phases run their searches in parallel.
+     * @param sources: source vertex indices, -1 for a missing vertex
+     * @param targets: target vertex indices, -1 for a missing vertex
+     * @return (double[][]) costs indexed by source and target, infinity where a target is not reachable
+     */
+    public double[][] distances(int[] sources, int[] targets) {
+        // Vertices settled by the backward search of each target and their distances
+        int[][] reachedVertices = new int[targets.length][];
+        double[][] reachedDistances = new double[targets.length][];
+        IntStream.range(0, targets.length).parallel().forEach(j -> {
+            SearchWorkspace workspace = SearchWorkspace.backward(rank.length);
+            reachedVertices[j] = upwardSearch(workspace, targets[j], downOffsets, downSources, downWeights);
+            reachedDistances[j] = new double[reachedVertices[j].length];
+            for (int k = 0; k < reachedVertices[j].length; k++)
+                reachedDistances[j][k] = workspace.distance(reachedVertices[j][k]);
+        });
+
+        // Group the entries by vertex into compressed-sparse-row buckets
+        int[] bucketOffsets = new int[rank.length + 1];
+        for (int[] vertices : reachedVertices)
+            for (int v : vertices)
+                bucketOffsets[v + 1]++;
+        for (int v = 0; v < rank.length; v++)
+            bucketOffsets[v + 1] += bucketOffsets[v];
+        int[] bucketTargets = new int[bucketOffsets[rank.length]];
+        double[] bucketDistances = new double[bucketTargets.length];
+        int[] next = Arrays.copyOf(bucketOffsets, rank.length);
+        for (int j = 0; j < targets.length; j++) {
+            for (int k = 0; k < reachedVertices[j].length; k++) {
+                int slot = next[reachedVertices[j][k]]++;
+                bucketTargets[slot] = j;
+                bucketDistances[slot] = reachedDistances[j][k];
+            }
+        }
+
+        double[][] answer = new double[sources.length][targets.length];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            double[] row = answer[i];
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+            SearchWorkspace workspace = SearchWorkspace.forward(rank.length);
+            for (int u : upwardSearch(workspace, sources[i], upOffsets, upTargets, upWeights)) {
+                double d = workspace.distance(u);
+                for (int b = bucketOffsets[u]; b < bucketOffsets[u + 1]; b++)
+                    row[bucketTargets[b]] = Math.min(row[bucketTargets[b]], d + bucketDistances[b]);
+            }
+        });
+        return answer;
+    }
+
+    /**
+     * Search every vertex reachable from a vertex over the given hierarchy edges, without a target
+     * @param workspace: reset workspace
+     * @param source: vertex index, -1 searches nothing
+     * @param offsets: adjacency offsets, neighbors and weights hold the edges they index
+     * @return (int[]) settled vertices in settle order, their distances stay in the workspace
+     */
+    private static int[] upwardSearch(SearchWorkspace workspace, int source, int[] offsets, int[] neighbors, double[] weights) {
+        if (source < 0)
+            return new int[0];
+        int[] settled = new int[64];
+        int count = 0;
+        workspace.update(source, 0.0, -1);
+        workspace.heap.pushOrDecrease(source, 0.0);
+        while (!workspace.heap.isEmpty()) {
+            int u = workspace.heap.pop();
+            if (count == settled.length)
+                settled = Arrays.copyOf(settled, count * 2);
+            settled[count++] = u;
+            double d = workspace.distance(u);
+            for (int i = offsets[u]; i < offsets[u + 1]; i++) {
+                double nd = d + weights[i];
+                if (nd < workspace.distance(neighbors[i])) {
+                    workspace.update(neighbors[i], nd, -1);
+                    workspace.heap.pushOrDecrease(neighbors[i], nd);
+                }
+            }
+        }
+        return Arrays.copyOf(settled, count);
+    }
+
+    /**
+     * Returns the position of a vertex in the contraction order
+     * @param v: vertex index
+     * @return (int) rank, higher ranked vertices were contracted later
+     */
+    public int rank(int v) {
+        return rank[v];
+    }
+
+    /**
+     * Returns the number of edges in the hierarchy, original ones and shortcuts
+     * @return (int) edge count
+     */
+    public int edgeCount() {
+        return edgeFrom.length;
+    }
+
+    /**
+     * Write the hierarchy to a file so it can be loaded instead of contracting again
+     * @param file: output file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(graph.fingerprint());
+            writeArray(out, rank);
+            writeArray(out, edgeFrom);
+            writeArray(out, edgeTo);
+            writeArray(out, edgeChild1);
+            writeArray(out, edgeChild2);
+            double[] edgeWeight = new double[edgeFrom.length];
+            for (int i = 0; i < upEdges.length; i++)
+                edgeWeight[upEdges[i]] = upWeights[i];
+            for (int i = 0; i < downEdges.length; i++)
+                edgeWeight[downEdges[i]] = downWeights[i];
+            out.writeInt(edgeWeight.length);
+            for (double w : edgeWeight)
+                out.writeDouble(w);
+            writeArray(out, upOffsets);
+            writeArray(out, upEdges);
+            writeArray(out, downOffsets);
+            writeArray(out, downEdges);
+        }
+    }
+
+    /**
+     * Read a hierarchy written by save()
+     * @param file: input file
+     * @param graph: graph the hierarchy was built on
+     * @return (ContractionHierarchy) hierarchy, null if the file was built on another graph
+     * @throws IOException if the file cannot be read
+     */
+    public static ContractionHierarchy load(File file, CompactGraph graph) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != graph.fingerprint())
+                return null;
+            int[] rank = readArray(in);
+            int[] edgeFrom = readArray(in);
+            int[] edgeTo = readArray(in);
+            int[] edgeChild1 = readArray(in);
+            int[] edgeChild2 = readArray(in);
+            double[] edgeWeight = new double[in.readInt()];
+            for (int i = 0; i < edgeWeight.length; i++)
+                edgeWeight[i] = in.readDouble();
+            int[] upOffsets = readArray(in);
+            int[] upEdges = readArray(in);
+            int[] downOffsets = readArray(in);
+            int[] downEdges = readArray(in);
+            return new ContractionHierarchy(graph, rank, edgeFrom, edgeTo, edgeChild1, edgeChild2,
+                    edgeWeight, upOffsets, upEdges, downOffsets, downEdges);
+        }
+    }
+
+    private static void writeArray(DataOutputStream out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        for (int value : array)
+            out.writeInt(value);
+    }
+
+    private static int[] readArray(DataInputStream in) throws IOException {
+        int[] array = new int[in.readInt()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = in.readInt();
+        return array;
+    }
+
+    /**
+     * Contracts the vertices of a graph, keeping the remaining graph in growable adjacency lists of edge ids
+     */
+    private static class Builder {
+        private final CompactGraph graph;
+        private final int n;
+        private int[] from = new int[1024], to = new int[1024], child1 = new int[1024], child2 = new int[1024];
+        private double[] weight = new double[1024];
+        private int edgeCount;
+        private final int[][] out, in;
+        private final int[] outSize, inSize;
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors, depth;
+        private final int[][] upLists, downLists;
+        private final SearchWorkspace witness;
+
+        Builder(CompactGraph graph) {
+            this.graph = graph;
+            n = graph.size();
+            out = new int[n][];
+            in = new int[n][];
+            outSize = new int[n];
+            inSize = new int[n];
+            contracted = new boolean[n];
+            contractedNeighbors = new int[n];
+            depth = new int[n];
+            upLists = new int[n][];
+            downLists = new int[n][];
+            witness = new SearchWorkspace(n);
+            for (int v = 0; v < n; v++) {
+                out[v] = new int[4];
+                in[v] = new int[4];
+            }
+        }
+
+        ContractionHierarchy build() {
+            // Parallel edges collapse into the shortest one, loops never lie on a shortest path
+            for (int u = 0; u < n; u++)
+                for (int e = graph.firstEdge(u); e < graph.lastEdge(u); e++)
+                    if (graph.target(e) != u)
+                        addEdge(u, graph.target(e), graph.weight(e), -1, -1);
+
+            // Lazy updates: a vertex is contracted when its recomputed priority is still the smallest
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for (int v = 0; v < n; v++)
+                queue.add(entry(priority(v), v));
+            int[] rank = new int[n];
+            int next = 0;
+            while (!queue.isEmpty()) {
+                int v = (int) (long) queue.poll();
+                int p = priority(v);
+                if (!queue.isEmpty() && p > (int) ((queue.peek() >> 32) - Integer.MAX_VALUE / 2)) {
+                    queue.add(entry(p, v));
+                    continue;
+                }
+                contract(v);
+                rank[v] = next++;
+            }
+
+            int[] upOffsets = new int[n + 1], downOffsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                upOffsets[v + 1] = upOffsets[v] + upLists[v].length;
+                downOffsets[v + 1] = downOffsets[v] + downLists[v].length;
+            }
+            int[] upEdges = new int[upOffsets[n]], downEdges = new int[downOffsets[n]];
+            for (int v = 0; v < n; v++) {
+                System.arraycopy(upLists[v], 0, upEdges, upOffsets[v], upLists[v].length);
+                System.arraycopy(downLists[v], 0, downEdges, downOffsets[v], downLists[v].length);
+            }
+            return new ContractionHierarchy(graph, rank, Arrays.copyOf(from, edgeCount), Arrays.copyOf(to, edgeCount),
+                    Arrays.copyOf(child1, edgeCount), Arrays.copyOf(child2, edgeCount), Arrays.copyOf(weight, edgeCount),
+                    upOffsets, upEdges, downOffsets, downEdges);
+        }
+
+        private static long entry(int priority, int v) {
+            return ((long) priority + Integer.MAX_VALUE / 2) << 32 | v;
+        }
+
+        /**
+         * Edge difference plus contracted neighbours and depth, keeps the hierarchy small and flat
+         */
+        private int priority(int v) {
+            int shortcuts = contract(v, false);
+            return 2 * (shortcuts - outSize[v] - inSize[v]) + contractedNeighbors[v] + depth[v];
+        }
+
+        private void contract(int v) {
+            contract(v, true);
+            upLists[v] = Arrays.copyOf(out[v], outSize[v]);
+            downLists[v] = Arrays.copyOf(in[v], inSize[v]);
+            contracted[v] = true;
+            // Detach v from the remaining graph
+            for (int i = 0; i < outSize[v]; i++) {
+                int w = to[out[v][i]];
+                removeEdge(in, inSize, w, out[v][i]);
+                contractedNeighbors[w]++;
+                depth[w] = Math.max(depth[w], depth[v] + 1);
+            }
+            for (int i = 0; i < inSize[v]; i++) {
+                int u = from[in[v][i]];
+                removeEdge(out, outSize, u, in[v][i]);
+                contractedNeighbors[u]++;
+                depth[u] = Math.max(depth[u], depth[v] + 1);
+            }
+            out[v] = null;
+            in[v] = null;
+        }
+
+        /**
+         * Find the shortcuts needed to remove v, a shortcut u->w is needed when no path avoiding v is as short
+         * @param v: vertex to contract
+         * @param add: add the shortcuts, otherwise only count them
+         * @return (int) number of shortcuts
+         */
+        private int contract(int v, boolean add) {
+            int shortcuts = 0;
+            double maxOut = 0.0;
+            for (int j = 0; j < outSize[v]; j++)
+                maxOut = Math.max(maxOut, weight[out[v][j]]);
+            for (int i = 0; i < inSize[v]; i++) {
+                int e1 = in[v][i];
+                int u = from[e1];
+                witnessSearch(u, v, weight[e1] + maxOut, add ? WITNESS_SETTLE_LIMIT : ESTIMATE_SETTLE_LIMIT);
+                for (int j = 0; j < outSize[v]; j++) {
+                    int e2 = out[v][j];
+                    int w = to[e2];
+                    if (w == u)
+                        continue;
+                    double via = weight[e1] + weight[e2];
+                    if (witness.distance(w) <= via)
+                        continue;
+                    shortcuts++;
+                    if (add)
+                        addEdge(u, w, via, e1, e2);
+                }
+            }
+            return shortcuts;
+        }
+
+        private void witnessSearch(int source, int excluded, double limit, int settleLimit) {
+            witness.reset();
+            witness.update(source, 0.0, -1);
+            witness.heap.pushOrDecrease(source, 0.0);
+            int settled = 0;
+            while (!witness.heap.isEmpty() && settled < settleLimit) {
+                int u = witness.heap.pop();
+                double d = witness.distance(u);
+                if (d > limit)
+                    break;
+                settled++;
+                for (int i = 0; i < outSize[u]; i++) {
+                    int e = out[u][i];
+                    int w = to[e];
+                    if (w == excluded)
+                        continue;
+                    double nd = d + weight[e];
+                    if (nd < witness.distance(w)) {
+                        witness.update(w, nd, e);
+                        witness.heap.pushOrDecrease(w, nd);
+                    }
+                }
+            }
+        }
+
+        private void addEdge(int u, int w, double edgeWeight, int c1, int c2) {
+            for (int i = 0; i < outSize[u]; i++) {
+                int e = out[u][i];
+                if (to[e] == w) {
+                    if (weight[e] <= edgeWeight)
+                        return;
+                    // Replace the longer edge in both lists
+                    int replacement = newEdge(u, w, edgeWeight, c1, c2);
+                    out[u][i] = replacement;
+                    for (int j = 0; j < inSize[w]; j++)
+                        if (in[w][j] == e)
+                            in[w][j] = replacement;
+                    return;
+                }
+            }
+            int e = newEdge(u, w, edgeWeight, c1, c2);
+            append(out, outSize, u, e);
+            append(in, inSize, w, e);
+        }
+
+        private int newEdge(int u, int w, double edgeWeight, int c1, int c2) {
+            if (edgeCount == from.length) {
+                int capacity = edgeCount * 2;
+                from = Arrays.copyOf(from, capacity);
+                to = Arrays.copyOf(to, capacity);
+                child1 = Arrays.copyOf(child1, capacity);
+                child2 = Arrays.copyOf(child2, capacity);
+                weight = Arrays.copyOf(weight, capacity);
+            }
+            from[edgeCount] = u;
+            to[edgeCount] = w;
+            weight[edgeCount] = edgeWeight;
+            child1[edgeCount] = c1;
+            child2[edgeCount] = c2;
+            return edgeCount++;
+        }
+
+        private static void append(int[][] lists, int[] sizes, int v, int e) {
+            if (sizes[v] == lists[v].length)
+                lists[v] = Arrays.copyOf(lists[v], sizes[v] * 2);
+            lists[v][sizes[v]++] = e;
+        }
+
+        private static void removeEdge(int[][] lists, int[] sizes, int v, int e) {
+            for (int i = 0; i < sizes[v]; i++) {
+                if (lists[v][i] == e) {
+                    lists[v][i] = lists[v][--sizes[v]];
+                    return;
+                }
+            }
+        }
+    }
+}
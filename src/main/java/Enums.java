@@ -0,0 +1,20 @@
+/**
+ * Parsing of enum settings given as names in system properties and query parameters
+ */
+public class Enums {
+
+    /**
+     * Parse a constant name case-insensitively
+     * @param name: constant name, may be null
+     * @param fallback: constant returned when name is null or unknown, also gives the enum parsed
+     * @return (E) parsed constant
+     */
+    public static <E extends Enum<E>> E parse(String name, E fallback) {
+        if (name == null)
+            return fallback;
+        for (E constant : fallback.getDeclaringClass().getEnumConstants())
+            if (constant.name().equalsIgnoreCase(name))
+                return constant;
+        return fallback;
+    }
+}
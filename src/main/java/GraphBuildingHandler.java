@@ -109,7 +109,7 @@ public class GraphBuildingHandler extends DefaultHandler {
                 .equals("name")) {
             String normalizedName = GraphDB.normalizeString(attributes.getValue("v"));
             lastSavedVertex.setName(attributes.getValue("v"));
-            g.tst.put(normalizedName, lastSavedVertex);
+            g.indexName(normalizedName, lastSavedVertex);
         }
     }
 
@@ -3,7 +3,10 @@ import org.xml.sax.SAXException;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -11,17 +14,110 @@ import javax.xml.parsers.SAXParserFactory;
 
 public class GraphDB {
 
+    /**
+     * Reader used to build the graph from the OSM file
+     */
+    public enum Ingest {
+        // SAX parse into Vertex and Edge objects, then clean and freeze
+        SAX,
+        // Byte-level scan straight into primitive arrays
+        STREAM,
+        // Byte-level scan that first collects the nodes of allowed ways and then stores only those
+        TWO_PASS;
+    }
 
+    // Ingest used when no snapshot can be loaded, configured with -Dgraph.ingest=two_pass
+    public static final Ingest INGEST = Enums.parse(System.getProperty("graph.ingest"), Ingest.STREAM);
+
+    // Object graph filled while the file is parsed, released once it is frozen into compactGraph
     public Graph graph = new Graph();
-    public TST<Vertex> tst = new TST<>();
+    public CompactGraph compactGraph;
+    // Name index, frozen into a CompactTST once the names are read. Names are ranked by how many
+    // places carry them, the index keeps one place per name
+    public PrefixIndex<Vertex> tst;
+    // Frozen tst, searched directly for misspelled prefixes
+    private CompactTST<Vertex> nameIndex;
+    private TST<Vertex> names = new TST<>();
+    private HashMap<String, Integer> nameCounts = new HashMap<>();
+    // Recent prefix lookups on tst for autocomplete
+    private PrefixSearchCache<Vertex> searchCache;
+    // TST insertions made while parsing, kept until they are written to the snapshot
+    private List<String> nameKeys = new ArrayList<>();
+    private List<Vertex> namedVertices = new ArrayList<>();
+    // Positions reported by the spatial index are vertex indices of compactGraph
+    private SpatialIndex spatialIndex;
+    // Built on first use, or at load time when it is the default routing mode
+    private volatile ContractionHierarchy contractionHierarchy;
+    // Paths found on this graph, a reloaded graph starts with an empty cache
+    private final BoundedCache<Router.LegKey, Router.Leg> routeCache = new BoundedCache<>(
+            Long.getLong("router.cache.bytes", 32L << 20), leg -> 64L + 4L * leg.path.length);
 
     /**
-     * Construct graph by reading the file and remove unnecessary vertices
+     * Construct graph by reading the file and remove unnecessary vertices. The cleaned graph is
+     * written to a snapshot next to the file, named by the graph.snapshot.path property, and later
+     * loaded from it for as long as the file is unchanged. An empty property disables snapshots.
      * @param dbPath: path to the XML file with graph information
      */
     public GraphDB(String dbPath) {
+        this(dbPath, INGEST);
+    }
+
+    /**
+     * Construct graph by reading the file with the given reader when no snapshot can be loaded
+     * @param dbPath: path to the XML file with graph information
+     * @param ingest: reader used to build the graph from the file
+     */
+    public GraphDB(String dbPath, Ingest ingest) {
+        File inputFile = new File(dbPath);
+        String snapshotPath = System.getProperty("graph.snapshot.path", dbPath + ".snapshot");
+        File snapshotFile = snapshotPath.isEmpty() || !inputFile.isFile() ? null : new File(snapshotPath);
+        byte[] sourceHash = null;
+        GraphSnapshot snapshot = null;
+        try {
+            if (snapshotFile != null) {
+                sourceHash = GraphSnapshot.hash(inputFile);
+                if (snapshotFile.isFile())
+                    snapshot = GraphSnapshot.load(snapshotFile, sourceHash);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (snapshot != null) {
+            compactGraph = snapshot.graph;
+            for (int i = 0; i < snapshot.nameKeys.size(); i++)
+                putName(snapshot.nameKeys.get(i), snapshot.namedVertices.get(i));
+        } else {
+            compactGraph = ingest == Ingest.SAX ? parse(inputFile) : stream(inputFile, ingest == Ingest.TWO_PASS);
+            try {
+                if (sourceHash != null)
+                    GraphSnapshot.save(snapshotFile, sourceHash, compactGraph, nameKeys, namedVertices);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        HashMap<String, Integer> counts = nameCounts;
+        CompactTST<Vertex> index = CompactTST.freeze(names, vertex -> counts.getOrDefault(normalizeString(vertex.getName()), 1));
+        tst = index;
+        nameIndex = index;
+        searchCache = new PrefixSearchCache<>(index, Long.getLong("search.cache.bytes", 16L << 20));
+        graph = null;
+        names = null;
+        nameCounts = null;
+        nameKeys = null;
+        namedVertices = null;
+        spatialIndex = compactGraph.spatialIndex();
+        if (Router.DEFAULT_MODE == Router.Mode.CH)
+            contractionHierarchy();
+    }
+
+    /**
+     * Build the graph with the SAX handler, then remove unnecessary vertices
+     * @param inputFile: OSM XML file
+     * @return (CompactGraph) cleaned graph
+     */
+    private CompactGraph parse(File inputFile) {
         try {
-            File inputFile = new File(dbPath);
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
             GraphBuildingHandler gbh = new GraphBuildingHandler(this);
@@ -30,6 +126,96 @@ public class GraphDB {
             e.printStackTrace();
         }
         clean();
+        return CompactGraph.freeze(graph);
+    }
+
+    /**
+     * Build the cleaned graph with the streaming reader
+     * @param inputFile: OSM XML file
+     * @param twoPass: store only the nodes of allowed ways
+     * @return (CompactGraph) cleaned graph, empty if the file cannot be read
+     */
+    private CompactGraph stream(File inputFile, boolean twoPass) {
+        try {
+            return OsmIngest.read(inputFile, this, twoPass);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return CompactGraph.freeze(new Graph());
+        }
+    }
+
+    /**
+     * Add a named vertex to the name index
+     * @param key: normalized name
+     * @param vertex: vertex with the name
+     */
+    void indexName(String key, Vertex vertex) {
+        putName(key, vertex);
+        nameKeys.add(key);
+        namedVertices.add(vertex);
+    }
+
+    private void putName(String key, Vertex vertex) {
+        names.put(key, vertex);
+        nameCounts.merge(key, 1, Integer::sum);
+    }
+
+    /**
+     * Returns the contraction hierarchy of the graph, building it on first call. If the
+     * router.ch.path property names a file, a hierarchy saved there for the same graph is loaded
+     * instead, and a newly built one is saved to it.
+     * @return (ContractionHierarchy) hierarchy
+     */
+    public ContractionHierarchy contractionHierarchy() {
+        ContractionHierarchy ch = contractionHierarchy;
+        if (ch != null)
+            return ch;
+        synchronized (this) {
+            if (contractionHierarchy != null)
+                return contractionHierarchy;
+            String path = System.getProperty("router.ch.path");
+            File file = path == null ? null : new File(path);
+            try {
+                if (file != null && file.isFile())
+                    ch = ContractionHierarchy.load(file, compactGraph);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (ch == null) {
+                ch = ContractionHierarchy.build(compactGraph);
+                try {
+                    if (file != null)
+                        ch.save(file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            contractionHierarchy = ch;
+            return ch;
+        }
+    }
+
+    /**
+     * Returns the cache of paths found on this graph, bounded by -Drouter.cache.bytes
+     * @return (BoundedCache) paths keyed by snapped endpoints and mode
+     */
+    BoundedCache<Router.LegKey, Router.Leg> routeCache() {
+        return routeCache;
+    }
+
+    /**
+     * Forget every cached path, to be called when edge weights change
+     */
+    public void invalidateRoutes() {
+        routeCache.invalidateAll();
+    }
+
+    /**
+     * Returns the hit and miss counters of the route cache
+     * @return (Map) cache statistics
+     */
+    public Map<String, Object> routeCacheStats() {
+        return routeCache.stats();
     }
 
     /**
@@ -38,8 +224,52 @@ public class GraphDB {
      * @return (String) normalized string
      */
     static String normalizeString(String s) {
-        String regex = "[^a-zA-Z]";
-        return s.replaceAll(regex, "").toLowerCase();
+        // Keep ASCII letters only, lowercased, without a regex. Strings that are already
+        // normalized, like the names of the index, are returned as they are
+        int i = 0;
+        while (i < s.length() && s.charAt(i) >= 'a' && s.charAt(i) <= 'z')
+            i++;
+        if (i == s.length())
+            return s;
+        char[] normalized = new char[s.length()];
+        s.getChars(0, i, normalized, 0);
+        int length = i;
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z')
+                normalized[length++] = c;
+            else if (c >= 'A' && c <= 'Z')
+                normalized[length++] = (char) (c + ('a' - 'A'));
+        }
+        return new String(normalized, 0, length);
+    }
+
+    /**
+     * Returns the places whose names start with the given prefix, answered from recent lookups where possible
+     * @param prefix: normalized prefix of name
+     * @param limit: largest number of places, Integer.MAX_VALUE returns all in index order
+     * @return (List) read-only list of places, the most common names first if limited
+     */
+    public List<Vertex> searchNames(String prefix, int limit) {
+        return searchCache.valuesWithPrefix(prefix, limit);
+    }
+
+    /**
+     * Returns the places whose names start with a string within the given edit distance of the prefix
+     * @param prefix: normalized prefix of name, possibly misspelled
+     * @param maxDistance: largest number of inserted, deleted or replaced characters
+     * @return (List) list of places, closest first
+     */
+    public List<Vertex> fuzzySearchNames(String prefix, int maxDistance) {
+        return nameIndex.valuesWithFuzzyPrefix(prefix, maxDistance);
+    }
+
+    /**
+     * Returns the usage of the prefix lookup cache
+     * @return (Map) statistics of the node and result caches
+     */
+    public Map<String, Object> searchCacheStats() {
+        return searchCache.stats();
     }
 
     /**
@@ -69,9 +299,7 @@ public class GraphDB {
      * @return (double) distance
      */
     public double distance(Vertex v1, Vertex v2) {
-        double lat = (v1.getLat()-v2.getLat());
-        double lon = (v1.getLng()-v2.getLng());
-        return Math.sqrt(Math.pow(lat,2)+Math.pow(lon,2));
+        return CompactGraph.distance(v1.getLat(), v1.getLng(), v2.getLat(), v2.getLng());
     }
 
     /**
@@ -81,16 +309,35 @@ public class GraphDB {
      * @return (long) vertex id
      */
     public long closest(double lon, double lat) {
-        Vertex position = new Vertex(lat,lon,0L);
-        double closest = 999999;
-        Vertex answer = position;
-        for (Vertex vertex: graph.getVertices()) {
-            if (distance(vertex, position) < closest) {
-                closest = distance(vertex, position);
-                answer = vertex;
-            }
-        }
-        return answer.getId();
+        int nearest = closestIndex(lon, lat);
+        if (nearest < 0)
+            return 0L;
+        return compactGraph.id(nearest);
+    }
+
+    /**
+     * Returns the index in compactGraph of the closest vertex to the given latitude and longitude values
+     * @param lon: longitude value
+     * @param lat: latitude value
+     * @return (int) vertex index, -1 if the graph is empty
+     */
+    public int closestIndex(double lon, double lat) {
+        return spatialIndex.nearest(lon, lat);
+    }
+
+    /**
+     * Returns the k closest vertices to the given latitude and longitude values, nearest first
+     * @param lon: longitude value
+     * @param lat: latitude value
+     * @param k: maximum number of vertices to return
+     * @return (long[]) vertex ids
+     */
+    public long[] kClosest(double lon, double lat, int k) {
+        int[] nearest = spatialIndex.kNearest(lon, lat, k);
+        long[] answer = new long[nearest.length];
+        for (int i = 0; i < nearest.length; i++)
+            answer[i] = compactGraph.id(nearest[i]);
+        return answer;
     }
 
     /**
@@ -99,7 +346,7 @@ public class GraphDB {
      * @return (double) longitude
      */
     double lon(long v) {
-        return graph.getVertex(v).getLng();
+        return compactGraph.lon(compactGraph.indexOf(v));
     }
 
     /**
@@ -108,6 +355,6 @@ public class GraphDB {
      * @return (double) latitude
      */
     double lat(long v) {
-        return graph.getVertex(v).getLat();
+        return compactGraph.lat(compactGraph.indexOf(v));
     }
 }
@@ -0,0 +1,141 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary copy of a cleaned graph and its name index, so a restart maps one file instead of parsing
+ * the OSM XML again. The snapshot stores the SHA-256 of the file it was built from and is only
+ * used while that file is unchanged.
+ */
+public class GraphSnapshot {
+    private static final int MAGIC = 0x4e475331;
+    private static final int VERSION = 1;
+
+    public final CompactGraph graph;
+    // Keys and vertices in the order they were put into the TST, replaying them rebuilds the same tree
+    public final List<String> nameKeys;
+    public final List<Vertex> namedVertices;
+
+    private GraphSnapshot(CompactGraph graph, List<String> nameKeys, List<Vertex> namedVertices) {
+        this.graph = graph;
+        this.nameKeys = nameKeys;
+        this.namedVertices = namedVertices;
+    }
+
+    /**
+     * Returns the SHA-256 of a file
+     * @param file: input file
+     * @return (byte[]) digest
+     * @throws IOException if the file cannot be read
+     */
+    public static byte[] hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Map the file in chunks so files larger than 2 GB can be hashed too
+            long size = channel.size();
+            for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                long length = Math.min(Integer.MAX_VALUE, size - position);
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Write a snapshot of the graph and its name index
+     * @param file: output file
+     * @param sourceHash: hash of the file the graph was parsed from
+     * @param graph: cleaned graph
+     * @param nameKeys: normalized names in TST insertion order
+     * @param namedVertices: vertices put into the TST under nameKeys
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(File file, byte[] sourceHash, CompactGraph graph,
+                            List<String> nameKeys, List<Vertex> namedVertices) throws IOException {
+        // Write to a temporary file first so a crash never leaves a truncated snapshot behind
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sourceHash.length);
+            out.write(sourceHash);
+            graph.write(out);
+            out.writeInt(nameKeys.size());
+            for (int i = 0; i < nameKeys.size(); i++) {
+                Vertex vertex = namedVertices.get(i);
+                CompactGraph.writeString(out, nameKeys.get(i));
+                out.writeLong(vertex.getId());
+                out.writeDouble(vertex.getLat());
+                out.writeDouble(vertex.getLng());
+                CompactGraph.writeString(out, vertex.getName());
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Map a snapshot written by save()
+     * @param file: input file
+     * @param sourceHash: hash of the current source file
+     * @return (GraphSnapshot) snapshot, null if it was written by another version or for another source,
+     *         or is truncated, corrupt or too large to map
+     * @throws IOException if the file cannot be read
+     */
+    public static GraphSnapshot load(File file, byte[] sourceHash) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Graphs this large are parsed instead, a single buffer cannot map them
+            if (channel.size() > Integer.MAX_VALUE)
+                return null;
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 12 || in.getInt() != MAGIC || in.getInt() != VERSION)
+                return null;
+            try {
+                int hashLength = in.getInt();
+                if (hashLength != sourceHash.length)
+                    return null;
+                byte[] storedHash = new byte[hashLength];
+                in.get(storedHash);
+                if (!Arrays.equals(storedHash, sourceHash))
+                    return null;
+                CompactGraph graph = CompactGraph.read(in);
+                int nameCount = in.getInt();
+                // Each name takes at least two lengths, an id and two coordinates
+                if (nameCount < 0 || nameCount > in.remaining() / 32)
+                    return null;
+                List<String> nameKeys = new ArrayList<>(nameCount);
+                List<Vertex> namedVertices = new ArrayList<>(nameCount);
+                for (int i = 0; i < nameCount; i++) {
+                    nameKeys.add(CompactGraph.readString(in));
+                    long id = in.getLong();
+                    double lat = in.getDouble();
+                    double lon = in.getDouble();
+                    Vertex vertex = new Vertex(lat, lon, id);
+                    vertex.setName(CompactGraph.readString(in));
+                    namedVertices.add(vertex);
+                }
+                return in.hasRemaining() ? null : new GraphSnapshot(graph, nameKeys, namedVertices);
+            } catch (RuntimeException e) {
+                // A corrupt body reads past the end or negative lengths, the source is parsed again
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * 4-ary min-heap over the items 0..capacity-1 keyed by a double. Every item is in the heap at most
+ * once and its position is tracked, so a shorter distance found later lowers the key in place
+ * instead of adding a duplicate entry.
+ */
+public class IndexedMinHeap {
+    private final int[] items;
+    private final double[] keys;
+    // Position of each item in the heap, -1 if the item is not queued
+    private final int[] positions;
+    private int size;
+
+    /**
+     * Create an empty heap
+     * @param capacity: number of distinct items
+     */
+    public IndexedMinHeap(int capacity) {
+        items = new int[capacity];
+        keys = new double[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    public int capacity() {
+        return positions.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int item) {
+        return positions[item] >= 0;
+    }
+
+    /**
+     * Returns the item with the smallest key without removing it
+     * @return (int) item
+     */
+    public int peek() {
+        return items[0];
+    }
+
+    /**
+     * Returns the smallest key
+     * @return (double) key
+     */
+    public double peekKey() {
+        return keys[0];
+    }
+
+    /**
+     * Queue the item, or lower its key if it is queued with a larger one
+     * @param item: item to queue
+     * @param key: key of the item
+     * @return (boolean) true if the heap changed
+     */
+    public boolean pushOrDecrease(int item, double key) {
+        int position = positions[item];
+        if (position < 0) {
+            siftUp(size++, item, key);
+            return true;
+        }
+        if (key < keys[position]) {
+            siftUp(position, item, key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove the item with the smallest key
+     * @return (int) item
+     */
+    public int pop() {
+        int answer = items[0];
+        positions[answer] = -1;
+        size--;
+        if (size > 0)
+            siftDown(0, items[size], keys[size]);
+        return answer;
+    }
+
+    /**
+     * Remove every item, costs time in proportion to the items still queued
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++)
+            positions[items[i]] = -1;
+        size = 0;
+    }
+
+    private void siftUp(int position, int item, double key) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 2;
+            if (keys[parent] <= key)
+                break;
+            place(position, items[parent], keys[parent]);
+            position = parent;
+        }
+        place(position, item, key);
+    }
+
+    private void siftDown(int position, int item, double key) {
+        while (true) {
+            int first = 4 * position + 1;
+            if (first >= size)
+                break;
+            int last = Math.min(first + 4, size);
+            int smallest = first;
+            for (int child = first + 1; child < last; child++)
+                if (keys[child] < keys[smallest])
+                    smallest = child;
+            if (keys[smallest] >= key)
+                break;
+            place(position, items[smallest], keys[smallest]);
+            position = smallest;
+        }
+        place(position, item, key);
+    }
+
+    private void place(int position, int item, double key) {
+        items[position] = item;
+        keys[position] = key;
+        positions[item] = position;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Open addressing hash map from long keys to non-negative int values, without boxing
+ */
+public class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    /**
+     * @param expected: number of keys expected, the table grows past it when needed
+     */
+    public LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) * 2;
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns the value of a key
+     * @param key: key
+     * @return (int) value, -1 if the map does not contain the key
+     */
+    public int get(long key) {
+        for (int slot = slot(key); used[slot]; slot = (slot + 1) & mask)
+            if (keys[slot] == key)
+                return values[slot];
+        return -1;
+    }
+
+    /**
+     * Map a key to a value, replacing the previous value of the key
+     * @param key: key
+     * @param value: non-negative value
+     * @return (int) previous value, -1 if the key was not in the map
+     */
+    public int put(long key, int value) {
+        int slot = slot(key);
+        for (; used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        values[slot] = value;
+        // Keep the load factor at most one half
+        if (++size * 2 > keys.length)
+            grow();
+        return -1;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!oldUsed[i])
+                continue;
+            int slot = slot(oldKeys[i]);
+            while (used[slot])
+                slot = (slot + 1) & mask;
+            used[slot] = true;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of primitive longs, for queues whose entries pack their priority and payload
+ * into one long so nothing is boxed.
+ */
+public class LongMinHeap {
+    private long[] entries;
+    private int size;
+
+    /**
+     * Create an empty heap
+     * @param capacity: initial number of entries, grows as needed
+     */
+    public LongMinHeap(int capacity) {
+        entries = new long[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Queue an entry
+     * @param entry: entry to queue
+     */
+    public void add(long entry) {
+        if (size == entries.length)
+            entries = Arrays.copyOf(entries, size * 2);
+        int i = size++;
+        // Sift up
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (entries[parent] <= entry)
+                break;
+            entries[i] = entries[parent];
+            i = parent;
+        }
+        entries[i] = entry;
+    }
+
+    /**
+     * Remove the smallest entry
+     * @return (long) entry
+     */
+    public long poll() {
+        long top = entries[0];
+        long last = entries[--size];
+        int i = 0;
+        // Sift down
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && entries[child + 1] < entries[child])
+                child++;
+            if (last <= entries[child])
+                break;
+            entries[i] = entries[child];
+            i = child;
+        }
+        entries[i] = last;
+        return top;
+    }
+}
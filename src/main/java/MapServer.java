@@ -2,14 +2,21 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 import java.io.IOException;
 import java.util.stream.Collectors;
 import com.google.gson.Gson;
+import javax.servlet.http.Cookie;
 
 import static spark.Spark.*;
 
@@ -39,17 +46,59 @@ public class MapServer {
 
     private static final String[] REQUIRED_STOP_REQUEST_PARAMS = {"lat", "lon"};
 
+    // HttpOnly cookie carrying the client's routing session token, never read from the URL
+    private static final String SESSION_PARAM = "session";
+
+    private static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+    // Bytes of decoded tiles kept in memory, configured with -Dtiles.cache.bytes=536870912
+    private static final long TILE_CACHE_BYTES = Long.getLong("tiles.cache.bytes", 256L << 20);
+
+    // Deepest quadtree level loaded into the tile cache at startup, 0 disables the warm-up
+    private static final int TILE_WARMUP_DEPTH = Integer.getInteger("tiles.cache.warmup", 0);
+
+    // Bytes of encoded rasters kept in memory, configured with -Draster.cache.bytes=134217728
+    private static final long RASTER_CACHE_BYTES = Long.getLong("raster.cache.bytes", 64L << 20);
+
+    // Number of row strips a raster PNG is compressed in, in parallel
+    private static final int RASTER_ENCODE_STRIPS = Integer.getInteger("raster.encode.strips",
+            Runtime.getRuntime().availableProcessors());
+
+    // Largest number of source and target pairs a /matrix request may ask for
+    private static final int MAX_MATRIX_CELLS = 250000;
+
+    // Shortest search prefix that is matched with typos when it has no exact matches
+    private static final int MIN_FUZZY_LENGTH = 4;
+
+    // Matches returned by /search when no limit is given, and the most returned with one
+    private static final int SEARCH_LIMIT = PrefixSearchCache.MAX_CACHED_LIMIT;
+
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
             "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
+    // Headers of /raster.png, the raster result without render_grid
+    private static final String[] RASTER_HEADERS = {"X-Raster-Ul-Lon", "X-Raster-Ul-Lat", "X-Raster-Lr-Lon",
+            "X-Raster-Lr-Lat", "X-Raster-Depth", "X-Raster-Width", "X-Raster-Height", "X-Raster-Query-Success"};
+
     private static Rasterer rasterer;
     private static GraphDB graph;
-    private static LinkedList<Long> route = new LinkedList<>();
+    private static final SessionStore sessions = new SessionStore(SESSION_TIMEOUT_MILLIS);
+    private static TileCache tiles;
+    // PNG encoded rasters keyed by the corner tiles of the grid and the hash of the route drawn on it
+    private static final BoundedCache<String, byte[]> rasters =
+            new BoundedCache<>(RASTER_CACHE_BYTES, encoded -> (long) encoded.length);
 
 
     public static void initialize() {
         graph = new GraphDB(OSM_DB_PATH);
         rasterer = new Rasterer(IMG_ROOT);
+        tiles = new TileCache(IMG_ROOT, TILE_CACHE_BYTES);
+        if (TILE_WARMUP_DEPTH > 0) {
+            // Decode the shallow levels in the background so startup is not delayed
+            Thread warmUp = new Thread(() -> tiles.warmUp(TILE_WARMUP_DEPTH), "tile-warm-up");
+            warmUp.setDaemon(true);
+            warmUp.start();
+        }
     }
 
     public static void main(String[] args) {
@@ -67,29 +116,49 @@ public class MapServer {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
 
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-
             Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
 
-            boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
-
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
-            }
+            byte[] image = raster(req, rasteredImgParams);
+            if (image != null)
+                rasteredImgParams.put("b64_encoded_image_data", Base64.getEncoder().encodeToString(image));
 
 
             Gson gson = new Gson();
             return gson.toJson(rasteredImgParams);
         });
 
+        get("/raster.png", (req, res) -> {
+            // The PNG is the body and the raster bounds are X-Raster-* headers, e.g. X-Raster-Ul-Lon,
+            // so the image is neither Base64 encoded nor copied into a JSON string
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+
+            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+
+            byte[] image = raster(req, rasteredImgParams);
+            for (Map.Entry<String, Object> entry : rasteredImgParams.entrySet())
+                if (!entry.getKey().equals("render_grid"))
+                    res.header(rasterHeader(entry.getKey()), String.valueOf(entry.getValue()));
+            res.header("Access-Control-Expose-Headers", String.join(", ", RASTER_HEADERS));
+            if (image == null) {
+                res.status(204);
+                return "";
+            }
+            res.type("image/png");
+            res.raw().setContentLength(image.length);
+            OutputStream out = res.raw().getOutputStream();
+            out.write(image);
+            out.flush();
+            return "";
+        });
+
 
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
+            Router.Mode mode = Enums.parse(req.queryParams("mode"), Router.DEFAULT_MODE);
+            List<Long> route = Router.shortestPath(graph, session(req, res), params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"), mode);
             Map<String, Object> response = new HashMap<>();
             response.put("directions_success", true);
             response.put("directions", route);
@@ -97,11 +166,42 @@ public class MapServer {
             return gson.toJson(response);
         });
 
+        post("/route/batch", (req, res) -> {
+            // One JSON pair per request line, one JSON route per response line as routes complete.
+            // A form encoded body would be parsed as parameters and is refused
+            String contentType = req.contentType();
+            if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded"))
+                halt(HALT_RESPONSE, "Request failed - send pairs as application/x-ndjson.");
+            Router.Mode mode = Enums.parse(req.queryParams("mode"), Router.DEFAULT_MODE);
+            BufferedReader body = new BufferedReader(
+                    new InputStreamReader(req.raw().getInputStream(), StandardCharsets.UTF_8));
+            res.type("application/x-ndjson");
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8));
+            Router.shortestPaths(graph, new BatchPairs(body), mode, (index, route) -> {
+                try {
+                    out.write(batchLine(index, route));
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.flush();
+            return "";
+        });
+
         get("/stop", (req, res) -> {
             Gson gson = new Gson();
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_STOP_REQUEST_PARAMS);
-            route = Router.addStop(graph, params.get("lat"), params.get("lon"));
+            String optimize = req.queryParams("optimize");
+            List<Long> route = null;
+            try {
+                route = Router.addStop(graph, session(req, res), params.get("lat"), params.get("lon"),
+                        optimize == null ? Router.OPTIMIZE_STOPS : Boolean.parseBoolean(optimize));
+            } catch (IllegalStateException e) {
+                halt(HALT_RESPONSE, "Request failed - a route has at most " + Router.MAX_STOPS + " stops.");
+            }
             Map<String, Object> response = new HashMap<>();
             response.put("directions_success", true);
             response.put("directions", route);
@@ -109,8 +209,53 @@ public class MapServer {
         });
 
 
+        post("/matrix", (req, res) -> {
+            Gson gson = new Gson();
+            MatrixRequest request = null;
+            try {
+                request = gson.fromJson(req.body(), MatrixRequest.class);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide JSON.");
+            }
+            if (request == null || request.sources == null || request.sources.isEmpty())
+                halt(HALT_RESPONSE, "Request failed - parameters missing.");
+            // Without targets the matrix is between the sources themselves
+            List<MatrixPoint> targets = request.targets == null ? request.sources : request.targets;
+            if ((long) request.sources.size() * targets.size() > MAX_MATRIX_CELLS)
+                halt(HALT_RESPONSE, "Request failed - too many points.");
+            double[][] sources = coordinates(request.sources);
+            double[][] destinations = coordinates(targets);
+            Router.Mode mode = Enums.parse(request.mode, Router.DEFAULT_MODE);
+            double[][] costs = Router.distanceMatrix(graph, sources[0], sources[1],
+                    destinations[0], destinations[1], mode);
+            // Unreachable targets are reported as -1
+            for (double[] row : costs)
+                for (int j = 0; j < row.length; j++)
+                    if (Double.isInfinite(row[j]))
+                        row[j] = -1;
+            Map<String, Object> response = new HashMap<>();
+            response.put("matrix_success", true);
+            response.put("distances", costs);
+            return gson.toJson(response);
+        });
+
+        get("/stats", (req, res) -> {
+            Map<String, Object> response = new HashMap<>();
+            response.put("tile_cache", tiles.stats());
+            response.put("raster_cache", rasters.stats());
+            response.put("route_cache", graph.routeCacheStats());
+            response.put("search_cache", graph.searchCacheStats());
+            response.put("sessions", sessions.size());
+            Gson gson = new Gson();
+            return gson.toJson(response);
+        });
+
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            // Without a session there is no route to clear
+            RouteSession session = existingSession(req);
+            if (session != null)
+                Router.clearRoute(session);
             return true;
         });
 
@@ -119,13 +264,25 @@ public class MapServer {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
             Gson gson = new Gson();
+            // The most common names come first, responses never hold more than SEARCH_LIMIT of them
+            int limit = SEARCH_LIMIT;
+            if (reqParams.contains("limit")) {
+                try {
+                    limit = Integer.parseInt(req.queryParams("limit"));
+                } catch (NumberFormatException e) {
+                    halt(HALT_RESPONSE, "Request failed - limit is not a number.");
+                }
+                if (limit < 0)
+                    halt(HALT_RESPONSE, "Request failed - limit is negative.");
+                limit = Math.min(limit, SEARCH_LIMIT);
+            }
 
             if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
+                List<Map<String, Object>> data = getLocations(term, limit);
                 return gson.toJson(data);
             } else {
 
-                List<String> matches = getLocationsByPrefix(term);
+                List<String> matches = getLocationsByPrefix(term, limit);
                 return gson.toJson(matches);
             }
         });
@@ -158,27 +315,181 @@ public class MapServer {
     }
 
 
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
-        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
+    /**
+     * Line of a /route/batch request
+     */
+    private static class BatchPair {
+        Double start_lat, start_lon, end_lat, end_lon;
+    }
 
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
+    /**
+     * Pairs of a /route/batch request read line by line, a line that is not a complete pair gives null
+     */
+    private static class BatchPairs implements Iterator<double[]> {
+        private final BufferedReader reader;
+        private final Gson gson = new Gson();
+        private String line;
+
+        BatchPairs(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                // Skip blank lines
+                while (line == null || line.trim().isEmpty()) {
+                    line = reader.readLine();
+                    if (line == null)
+                        return false;
                 }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public double[] next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            String current = line;
+            line = null;
+            try {
+                BatchPair pair = gson.fromJson(current, BatchPair.class);
+                if (pair == null || pair.start_lat == null || pair.start_lon == null
+                        || pair.end_lat == null || pair.end_lon == null)
+                    return null;
+                return new double[]{pair.start_lon, pair.start_lat, pair.end_lon, pair.end_lat};
+            } catch (RuntimeException e) {
+                return null;
             }
         }
+    }
+
+    /**
+     * Format the route of a batch pair as a response line
+     * @param index: position of the pair in the request
+     * @param route: list of vertex ids, null if the pair was invalid
+     * @return (String) JSON line
+     */
+    private static String batchLine(int index, List<Long> route) {
+        StringBuilder line = new StringBuilder("{\"index\":").append(index);
+        if (route == null)
+            return line.append(",\"directions_success\":false}\n").toString();
+        line.append(",\"directions_success\":true,\"directions\":[");
+        for (int i = 0; i < route.size(); i++) {
+            if (i > 0)
+                line.append(',');
+            line.append(route.get(i));
+        }
+        return line.append("]}\n").toString();
+    }
+
+    /**
+     * Body of a /matrix request
+     */
+    private static class MatrixRequest {
+        List<MatrixPoint> sources;
+        List<MatrixPoint> targets;
+        String mode;
+    }
+
+    private static class MatrixPoint {
+        Double lat;
+        Double lon;
+    }
+
+    /**
+     * Split points into longitude and latitude arrays, halting the request if a point lacks one
+     * @param points: points of a /matrix request
+     * @return (double[][]) longitudes and latitudes
+     */
+    private static double[][] coordinates(List<MatrixPoint> points) {
+        double[][] answer = new double[2][points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            MatrixPoint point = points.get(i);
+            if (point == null || point.lat == null || point.lon == null)
+                halt(HALT_RESPONSE, "Request failed - parameters missing.");
+            answer[0][i] = point.lon;
+            answer[1][i] = point.lat;
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the routing session of the client, starting a new one and handing its token
+     * out as a cookie if the request carries no known token. Only endpoints that change the
+     * route start sessions
+     */
+    private static RouteSession session(spark.Request req, spark.Response res) {
+        String token = sessionToken(req);
+        RouteSession session = sessions.get(token);
+        if (!session.getToken().equals(token)) {
+            // Scripts never need the token, so they are not allowed to read it
+            Cookie cookie = new Cookie(SESSION_PARAM, session.getToken());
+            cookie.setPath("/");
+            cookie.setHttpOnly(true);
+            res.raw().addCookie(cookie);
+        }
+        return session;
+    }
+
+    /**
+     * Returns the routing session of the client without starting one
+     * @return (RouteSession) session, null if the request carries no known token
+     */
+    private static RouteSession existingSession(spark.Request req) {
+        return sessions.find(sessionToken(req));
+    }
+
+    private static String sessionToken(spark.Request req) {
+        return req.cookie(SESSION_PARAM);
+    }
+
+
+    /**
+     * Returns the encoded raster of a query, rendering it unless it is cached. The raster size is
+     * added to the result
+     * @param rasteredImgParams: result of the rasterer
+     * @return (byte[]) PNG image, null if the query failed
+     */
+    private static byte[] raster(spark.Request req, Map<String, Object> rasteredImgParams) {
+        if (!validateRasteredImgParams(rasteredImgParams))
+            return null;
+        // Rasters of clients without a route draw none
+        RouteSession session = existingSession(req);
+        List<Long> route = session == null ? Collections.emptyList() : session.getRoute();
+        String[][] renderGrid = (String[][]) rasteredImgParams.get("render_grid");
+        byte[] image = rasters.get(rasterKey(renderGrid, route), key -> {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            writeImagesToOutputStream(rasteredImgParams, route, os);
+            return os.toByteArray();
+        });
+        rasteredImgParams.put("raster_width", renderGrid[0].length * TILE_SIZE);
+        rasteredImgParams.put("raster_height", renderGrid.length * TILE_SIZE);
+        return image;
+    }
+
+    /**
+     * Header carrying a raster result field, raster_ul_lon becomes X-Raster-Ul-Lon and depth X-Raster-Depth
+     * @param field: name of the result field
+     * @return (String) header name
+     */
+    private static String rasterHeader(String field) {
+        StringBuilder header = new StringBuilder("X-Raster");
+        for (String word : field.replaceFirst("^raster_", "").split("_"))
+            header.append('-').append(Character.toUpperCase(word.charAt(0))).append(word.substring(1));
+        return header.toString();
+    }
+
+    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
+                                                  List<Long> route, ByteArrayOutputStream os) {
+        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
+
+        // Tiles are fetched and copied into place in parallel
+        BufferedImage img = TileCompositor.composite(renderGrid, MapServer::getImage, MapServer.TILE_SIZE);
+        Graphics graphic = img.getGraphics();
 
 
         double ullon = (double) rasteredImageParams.get("raster_ul_lon");
@@ -202,46 +513,53 @@ public class MapServer {
             });
         }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+        graphic.dispose();
 
         try {
-            ImageIO.write(img, "png", os);
+            PngEncoder.write(img, os, RASTER_ENCODE_STRIPS);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
     }
 
+    /**
+     * Key of a rendered raster, the corner tiles determine the whole grid and its bounds
+     * @param renderGrid: tile images of the raster
+     * @param route: route drawn over the tiles, may be null
+     * @return (String) cache key
+     */
+    private static String rasterKey(String[][] renderGrid, List<Long> route) {
+        long hash = 0xcbf29ce484222325L;
+        if (route != null)
+            for (long id : route)
+                hash = (hash ^ id) * 0x100000001b3L;
+        String[] lastRow = renderGrid[renderGrid.length - 1];
+        return renderGrid[0][0] + "|" + lastRow[lastRow.length - 1] + "|" + Long.toHexString(hash);
+    }
+
     private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
-        }
-        return tileImg;
+        return tiles.get(imgPath);
     }
 
 
-    public static void clearRoute() {
-        Router.clearRoute();
-        route = new LinkedList<Long>();
+    public static List<String> getLocationsByPrefix(String prefix) {
+        return getLocationsByPrefix(prefix, Integer.MAX_VALUE);
     }
 
 
-    public static List<String> getLocationsByPrefix(String prefix) {
-        return graph.tst.valuesWithPrefix(GraphDB.normalizeString(prefix))
-                .stream().map(Vertex::getName).collect(Collectors.toList());
+    public static List<String> getLocationsByPrefix(String prefix, int limit) {
+        return matches(prefix, limit).stream().map(Vertex::getName).collect(Collectors.toList());
     }
 
 
     public static List<Map<String, Object>> getLocations(String locationName) {
-        String location = GraphDB.normalizeString(locationName);
-        List<Vertex> matches = graph.tst.valuesWithPrefix(location);
+        return getLocations(locationName, Integer.MAX_VALUE);
+    }
+
+
+    public static List<Map<String, Object>> getLocations(String locationName, int limit) {
+        List<Vertex> matches = matches(locationName, limit);
         List<Map<String, Object>> mapList = new ArrayList<>();
         for (Vertex v : matches) {
             Map<String, Object> map = new HashMap<>();
@@ -255,6 +573,24 @@ public class MapServer {
     }
 
 
+    /**
+     * Returns the places whose names start with the given prefix. If none do, the prefix is taken as
+     * misspelled and the places within one edit, or two for prefixes of 8 characters or more, are returned
+     * @param prefix: prefix as typed, normalized before the lookup
+     * @param limit: largest number of places, not negative, Integer.MAX_VALUE returns all in index order
+     * @return list of places, the most common names first if limited
+     */
+    private static List<Vertex> matches(String prefix, int limit) {
+        String key = GraphDB.normalizeString(prefix);
+        List<Vertex> matches = graph.searchNames(key, limit);
+        // Short prefixes are left alone, a typo in them matches too much
+        if (!matches.isEmpty() || limit == 0 || key.length() < MIN_FUZZY_LENGTH)
+            return matches;
+        matches = graph.fuzzySearchNames(key, key.length() < 2 * MIN_FUZZY_LENGTH ? 1 : 2);
+        return matches.size() > limit ? matches.subList(0, limit) : matches;
+    }
+
+
     private static boolean validateRasteredImgParams(Map<String, Object> rip) {
         for (String p : REQUIRED_RASTER_RESULT_PARAMS) {
             if (!rip.containsKey(p)) {
@@ -0,0 +1,308 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Streaming OSM reader that builds the cleaned graph straight into primitive arrays, producing the
+ * same CompactGraph as GraphBuildingHandler followed by GraphDB.clean() and CompactGraph.freeze().
+ * Named nodes are put into the name index of the GraphDB as they are read.
+ * In two-pass mode a first pass collects the nodes referenced by allowed ways, and the second pass
+ * only stores those, named nodes off the roads go to the name index alone.
+ */
+public class OsmIngest {
+    private static final byte[] NODE = bytes("node"), WAY = bytes("way"), ND = bytes("nd"), TAG = bytes("tag");
+    private static final byte[] ID = bytes("id"), LAT = bytes("lat"), LON = bytes("lon"), REF = bytes("ref");
+    private static final byte[] K = bytes("k"), V = bytes("v");
+    private static final byte[] HIGHWAY = bytes("highway"), NAME = bytes("name"), ONEWAY = bytes("oneway"), YES = bytes("yes");
+    private static final byte[][] ALLOWED_HIGHWAY_TYPES = {bytes("motorway"), bytes("trunk"), bytes("primary"),
+            bytes("secondary"), bytes("tertiary"), bytes("unclassified"), bytes("residential"),
+            bytes("living_street"), bytes("motorway_link"), bytes("trunk_link"), bytes("primary_link"),
+            bytes("secondary_link"), bytes("tertiary_link")};
+    // Same states as GraphBuildingHandler.activeState, which tags and nds are interpreted by
+    private static final int OTHER = 0, IN_NODE = 1, IN_WAY = 2;
+
+    private final GraphDB g;
+
+    // Ids of the nodes allowed ways refer to, used as a set. Null when every node is stored
+    private LongIntHashMap referenced;
+    // True during the first pass of a two-pass read, which only fills referenced
+    private boolean collecting;
+
+    // Nodes in file order, nodeIndex maps node ids to positions
+    private LongIntHashMap nodeIndex = new LongIntHashMap(1 << 16);
+    private long[] nodeIds = new long[1 << 16];
+    private double[] nodeLats = new double[1 << 16], nodeLons = new double[1 << 16];
+    private int nodeCount;
+    // Node being read
+    private long currentId;
+    private double currentLat, currentLon;
+
+    // Edges in insertion order, names index wayNames
+    private int[] edgeSources = new int[1 << 16], edgeTargets = new int[1 << 16], edgeNames = new int[1 << 16];
+    private double[] edgeWeights = new double[1 << 16];
+    private int edgeCount;
+    private final HashMap<String, Integer> nameIndex = new HashMap<>();
+    private String[] wayNames = new String[16];
+
+    // Way being read
+    private long[] wayRefs = new long[256];
+    private int wayRefCount;
+    private String wayName;
+    private boolean wayOneWay, wayAllowed;
+
+    private OsmIngest(GraphDB g) {
+        this.g = g;
+    }
+
+    /**
+     * Read an OSM file into a compact graph
+     * @param file: OSM XML file
+     * @param g: graph database whose name index receives the named nodes
+     * @return (CompactGraph) cleaned graph
+     * @throws IOException if the file cannot be read
+     */
+    public static CompactGraph read(File file, GraphDB g) throws IOException {
+        return read(file, g, false);
+    }
+
+    /**
+     * Read an OSM file into a compact graph
+     * @param file: OSM XML file
+     * @param g: graph database whose name index receives the named nodes
+     * @param twoPass: read the file twice to store only the nodes allowed ways refer to
+     * @return (CompactGraph) cleaned graph
+     * @throws IOException if the file cannot be read
+     */
+    public static CompactGraph read(File file, GraphDB g, boolean twoPass) throws IOException {
+        OsmIngest ingest = new OsmIngest(g);
+        if (twoPass) {
+            ingest.referenced = new LongIntHashMap(1 << 16);
+            ingest.collecting = true;
+            try (OsmReader reader = new OsmReader(file)) {
+                ingest.scan(reader);
+            }
+            ingest.collecting = false;
+            int expected = Math.max(1, ingest.referenced.size());
+            ingest.nodeIndex = new LongIntHashMap(expected);
+            ingest.nodeIds = new long[expected];
+            ingest.nodeLats = new double[expected];
+            ingest.nodeLons = new double[expected];
+        }
+        try (OsmReader reader = new OsmReader(file)) {
+            ingest.scan(reader);
+        }
+        return ingest.freeze();
+    }
+
+    private void scan(OsmReader reader) throws IOException {
+        int state = OTHER;
+        boolean inNode = false;
+        for (int event = reader.next(); event != OsmReader.EOF; event = reader.next()) {
+            if (event == OsmReader.END) {
+                if (reader.nameIs(WAY))
+                    endWay();
+            } else if (reader.nameIs(NODE)) {
+                state = IN_NODE;
+                inNode = addNode(reader);
+            } else if (reader.nameIs(WAY)) {
+                state = IN_WAY;
+                wayRefCount = 0;
+                wayName = null;
+                wayOneWay = false;
+            } else if (state == IN_WAY && reader.nameIs(ND)) {
+                int ref = reader.attribute(REF);
+                if (ref < 0)
+                    continue;
+                if (wayRefCount == wayRefs.length)
+                    wayRefs = Arrays.copyOf(wayRefs, wayRefCount * 2);
+                wayRefs[wayRefCount++] = reader.longValue(ref);
+            } else if (state == IN_WAY && reader.nameIs(TAG)) {
+                wayTag(reader);
+            } else if (state == IN_NODE && reader.nameIs(TAG) && inNode) {
+                int k = reader.attribute(K);
+                if (k >= 0 && reader.valueIs(k, NAME)) {
+                    String name = reader.string(reader.attribute(V));
+                    Vertex vertex = new Vertex(currentLat, currentLon, currentId);
+                    vertex.setName(name);
+                    g.indexName(GraphDB.normalizeString(name), vertex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the node of the current tag and store it unless no allowed way refers to it.
+     * A repeated id replaces the earlier coordinates.
+     * @return (boolean) false if the node is skipped by the first pass or the tag lacks an attribute
+     */
+    private boolean addNode(OsmReader reader) {
+        int id = reader.attribute(ID), lat = reader.attribute(LAT), lon = reader.attribute(LON);
+        if (collecting || id < 0 || lat < 0 || lon < 0)
+            return false;
+        currentId = reader.longValue(id);
+        currentLat = reader.doubleValue(lat);
+        currentLon = reader.doubleValue(lon);
+        if (referenced != null && !referenced.containsKey(currentId))
+            return true;
+        int node = nodeIndex.get(currentId);
+        if (node < 0) {
+            if (nodeCount == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+                nodeLats = Arrays.copyOf(nodeLats, nodeCount * 2);
+                nodeLons = Arrays.copyOf(nodeLons, nodeCount * 2);
+            }
+            node = nodeCount++;
+            nodeIndex.put(currentId, node);
+            nodeIds[node] = currentId;
+        }
+        nodeLats[node] = currentLat;
+        nodeLons[node] = currentLon;
+        return true;
+    }
+
+    private void wayTag(OsmReader reader) {
+        int k = reader.attribute(K), v = reader.attribute(V);
+        if (k < 0 || v < 0)
+            return;
+        if (reader.valueIs(k, HIGHWAY)) {
+            // Mark the way as used to connect vertices in the graph
+            for (byte[] type : ALLOWED_HIGHWAY_TYPES)
+                if (reader.valueIs(v, type))
+                    wayAllowed = true;
+        } else if (reader.valueIs(k, NAME)) {
+            wayName = reader.string(v);
+        } else if (reader.valueIs(k, ONEWAY)) {
+            wayOneWay = reader.valueIs(v, YES);
+        }
+    }
+
+    /**
+     * Connect consecutive nodes of an allowed way, in both directions unless it is one way
+     */
+    private void endWay() {
+        if (!wayAllowed)
+            return;
+        if (collecting) {
+            for (int i = 0; i < wayRefCount; i++)
+                referenced.put(wayRefs[i], 0);
+            wayAllowed = false;
+            return;
+        }
+        int name = -1;
+        if (wayName != null) {
+            Integer index = nameIndex.get(wayName);
+            if (index == null) {
+                index = nameIndex.size();
+                nameIndex.put(wayName, index);
+                if (index == wayNames.length)
+                    wayNames = Arrays.copyOf(wayNames, index * 2);
+                wayNames[index] = wayName;
+            }
+            name = index;
+        }
+        for (int i = 1; i < wayRefCount; i++) {
+            int source = nodeIndex.get(wayRefs[i - 1]);
+            int destination = nodeIndex.get(wayRefs[i]);
+            // Segments to nodes missing from the file cannot be placed
+            if (source < 0 || destination < 0)
+                continue;
+            double weight = CompactGraph.distance(nodeLats[source], nodeLons[source],
+                    nodeLats[destination], nodeLons[destination]);
+            addEdge(source, destination, weight, name);
+            if (!wayOneWay)
+                addEdge(destination, source, weight, name);
+        }
+        wayAllowed = false;
+    }
+
+    private void addEdge(int source, int target, double weight, int name) {
+        if (edgeCount == edgeSources.length) {
+            edgeSources = Arrays.copyOf(edgeSources, edgeCount * 2);
+            edgeTargets = Arrays.copyOf(edgeTargets, edgeCount * 2);
+            edgeWeights = Arrays.copyOf(edgeWeights, edgeCount * 2);
+            edgeNames = Arrays.copyOf(edgeNames, edgeCount * 2);
+        }
+        edgeSources[edgeCount] = source;
+        edgeTargets[edgeCount] = target;
+        edgeWeights[edgeCount] = weight;
+        edgeNames[edgeCount] = name;
+        edgeCount++;
+    }
+
+    /**
+     * Drop the nodes no edge touches and lay out the rest in compressed-sparse-row order
+     * @return (CompactGraph) cleaned graph
+     */
+    private CompactGraph freeze() {
+        boolean[] used = new boolean[nodeCount];
+        int n = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            if (!used[edgeSources[e]]) {
+                used[edgeSources[e]] = true;
+                n++;
+            }
+            if (!used[edgeTargets[e]]) {
+                used[edgeTargets[e]] = true;
+                n++;
+            }
+        }
+        // Vertices are numbered in ascending id order like CompactGraph.freeze
+        long[] ids = new long[n];
+        for (int v = 0, i = 0; v < nodeCount; v++)
+            if (used[v])
+                ids[i++] = nodeIds[v];
+        Arrays.sort(ids);
+        int[] vertexOf = new int[nodeCount];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        for (int v = 0; v < nodeCount; v++) {
+            if (!used[v])
+                continue;
+            int index = Arrays.binarySearch(ids, nodeIds[v]);
+            vertexOf[v] = index;
+            lats[index] = nodeLats[v];
+            lons[index] = nodeLons[v];
+        }
+        nodeIndex = null;
+
+        // Place the edges under their sources, keeping insertion order within a source
+        int[] offsets = new int[n + 1];
+        for (int e = 0; e < edgeCount; e++)
+            offsets[vertexOf[edgeSources[e]] + 1]++;
+        for (int v = 0; v < n; v++)
+            offsets[v + 1] += offsets[v];
+        int[] next = Arrays.copyOf(offsets, n);
+        int[] targets = new int[edgeCount];
+        double[] weights = new double[edgeCount];
+        int[] wayOfEdge = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            int slot = next[vertexOf[edgeSources[e]]]++;
+            targets[slot] = vertexOf[edgeTargets[e]];
+            weights[slot] = edgeWeights[e];
+            wayOfEdge[slot] = edgeNames[e];
+        }
+
+        // Number the way names by first use in edge order, as CompactGraph.freeze does
+        int[] renamed = new int[nameIndex.size()];
+        Arrays.fill(renamed, -1);
+        String[] names = new String[nameIndex.size()];
+        int nameCount = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            int way = wayOfEdge[e];
+            if (way < 0)
+                continue;
+            if (renamed[way] < 0) {
+                renamed[way] = nameCount;
+                names[nameCount++] = wayNames[way];
+            }
+            wayOfEdge[e] = renamed[way];
+        }
+        return new CompactGraph(ids, lats, lons, offsets, targets, weights, wayOfEdge, Arrays.copyOf(names, nameCount));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
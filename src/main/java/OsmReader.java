@@ -0,0 +1,393 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Pull scanner over the tags of an XML file, reading bytes through a FileChannel into a reusable
+ * buffer. Only element names and attributes are reported, text, comments, processing
+ * instructions and declarations are skipped. Names and values are compared as bytes and numbers
+ * are parsed in place, so nothing is allocated unless a value is asked for as a String.
+ */
+public class OsmReader implements Closeable {
+    public static final int START = 1, END = 2, EOF = -1;
+    // Powers of ten that are exact doubles, dividing by them rounds correctly
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final FileChannel channel;
+    private byte[] buffer = new byte[1 << 16];
+    private int position, limit;
+    private boolean endOfInput;
+
+    // Current tag, the name is [nameStart, nameEnd) and attribute i is described by
+    // attributes[4i..4i+3] as the ranges of its name and value
+    private int nameStart, nameEnd;
+    private int[] attributes = new int[32];
+    private int attributeCount;
+    private boolean selfClosing, pendingEnd;
+
+    /**
+     * @param file: XML file
+     * @throws IOException if the file cannot be opened
+     */
+    public OsmReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Advance to the next start or end tag, a self-closing tag is reported as a start followed by an end
+     * @return (int) START, END or EOF
+     * @throws IOException if the file cannot be read
+     */
+    public int next() throws IOException {
+        if (pendingEnd) {
+            pendingEnd = false;
+            attributeCount = 0;
+            return END;
+        }
+        while (true) {
+            // Skip text up to the next markup
+            while (position < limit && buffer[position] != '<')
+                position++;
+            if (position == limit) {
+                position = limit = 0;
+                if (!fill())
+                    return EOF;
+                continue;
+            }
+            int end = markupEnd(position);
+            if (end < 0) {
+                // The markup continues after the buffer, read more of it
+                if (!fill()) {
+                    position = limit;
+                    return EOF;
+                }
+                continue;
+            }
+            int start = position;
+            position = end + 1;
+            byte second = buffer[start + 1];
+            if (second == '?' || second == '!')
+                continue;
+            if (second == '/') {
+                nameStart = start + 2;
+                nameEnd = nameStart;
+                while (nameEnd < end && !isSpace(buffer[nameEnd]))
+                    nameEnd++;
+                attributeCount = 0;
+                return END;
+            }
+            parseStartTag(start + 1, end);
+            pendingEnd = selfClosing;
+            return START;
+        }
+    }
+
+    /**
+     * Returns whether the current tag has the given name
+     * @param name: ASCII bytes of the name
+     * @return (boolean) true if the names are equal
+     */
+    public boolean nameIs(byte[] name) {
+        return equal(nameStart, nameEnd, name);
+    }
+
+    /**
+     * Returns the position of an attribute of the current tag
+     * @param name: ASCII bytes of the attribute name
+     * @return (int) attribute index, -1 if the tag has no such attribute
+     */
+    public int attribute(byte[] name) {
+        for (int i = 0; i < attributeCount; i++)
+            if (equal(attributes[4 * i], attributes[4 * i + 1], name))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Returns whether the value of an attribute equals the given bytes
+     * @param i: attribute index
+     * @param value: ASCII bytes of the expected value
+     * @return (boolean) true if the values are equal
+     */
+    public boolean valueIs(int i, byte[] value) {
+        int start = attributes[4 * i + 2], end = attributes[4 * i + 3];
+        if (needsDecoding(start, end))
+            return string(i).equals(new String(value, StandardCharsets.US_ASCII));
+        return equal(start, end, value);
+    }
+
+    /**
+     * Returns the decoded value of an attribute, resolving entity and character references
+     * @param i: attribute index
+     * @return (String) value
+     */
+    public String string(int i) {
+        int start = attributes[4 * i + 2], end = attributes[4 * i + 3];
+        String raw = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        return needsDecoding(start, end) ? decode(raw) : raw;
+    }
+
+    /**
+     * Parse the value of an attribute as a long
+     * @param i: attribute index
+     * @return (long) value
+     */
+    public long longValue(int i) {
+        int start = attributes[4 * i + 2], end = attributes[4 * i + 3];
+        boolean negative = start < end && buffer[start] == '-';
+        int p = negative ? start + 1 : start;
+        // At most 18 digits cannot overflow
+        if (p == end || end - p > 18)
+            return Long.parseLong(string(i).trim());
+        long value = 0;
+        for (; p < end; p++) {
+            int digit = buffer[p] - '0';
+            if (digit < 0 || digit > 9)
+                return Long.parseLong(string(i).trim());
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse the value of an attribute as a double, giving the same result as Double.parseDouble
+     * @param i: attribute index
+     * @return (double) value
+     */
+    public double doubleValue(int i) {
+        int start = attributes[4 * i + 2], end = attributes[4 * i + 3];
+        boolean negative = start < end && buffer[start] == '-';
+        int p = negative ? start + 1 : start;
+        long mantissa = 0;
+        int digits = 0, fractionDigits = -1;
+        for (; p < end; p++) {
+            byte b = buffer[p];
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9' && digits < 18) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0)
+                    fractionDigits++;
+            } else {
+                break;
+            }
+        }
+        // A mantissa below 2^53 and a power of ten up to 10^22 are both exact, so one division
+        // is correctly rounded. Anything else, like exponents or long mantissas, takes the slow path
+        if (p < end || digits == 0 || mantissa >= (1L << 53) || fractionDigits >= POWERS_OF_TEN.length)
+            return Double.parseDouble(string(i));
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Move the unread bytes to the front of the buffer and read more after them
+     * @return (boolean) false if the file has no more bytes
+     */
+    private boolean fill() throws IOException {
+        if (endOfInput)
+            return false;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        } else if (limit == buffer.length) {
+            // A single markup fills the buffer
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            buffer = larger;
+        }
+        int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * Find the '>' closing the markup starting at the given '<'
+     * @param start: position of '<'
+     * @return (int) position of the closing '>', -1 if it is not in the buffer yet
+     */
+    private int markupEnd(int start) {
+        int p = start + 1;
+        if (p >= limit)
+            return -1;
+        if (buffer[p] == '!') {
+            if (startsWith(p + 1, "--"))
+                return find(p + 3, "-->");
+            if (startsWith(p + 1, "[CDATA["))
+                return find(p + 8, "]]>");
+            if (p + 7 >= limit)
+                return -1;
+            // Declarations may hold an internal subset in brackets
+            int depth = 0;
+            for (; p < limit; p++) {
+                byte b = buffer[p];
+                if (b == '[')
+                    depth++;
+                else if (b == ']')
+                    depth--;
+                else if (b == '>' && depth == 0)
+                    return p;
+            }
+            return -1;
+        }
+        if (buffer[p] == '?')
+            return find(p + 1, "?>");
+        // Tags may hold '>' inside quoted attribute values
+        byte quote = 0;
+        for (; p < limit; p++) {
+            byte b = buffer[p];
+            if (quote != 0) {
+                if (b == quote)
+                    quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Record the name and attribute ranges of a start tag
+     * @param p: position after '<'
+     * @param end: position of '>'
+     */
+    private void parseStartTag(int p, int end) {
+        nameStart = p;
+        while (p < end && !isSpace(buffer[p]) && buffer[p] != '/')
+            p++;
+        nameEnd = p;
+        attributeCount = 0;
+        selfClosing = false;
+        while (p < end) {
+            byte b = buffer[p];
+            if (isSpace(b)) {
+                p++;
+            } else if (b == '/') {
+                selfClosing = true;
+                p++;
+            } else {
+                int keyStart = p;
+                while (p < end && buffer[p] != '=' && !isSpace(buffer[p]))
+                    p++;
+                int keyEnd = p;
+                while (p < end && buffer[p] != '"' && buffer[p] != '\'')
+                    p++;
+                if (p == end)
+                    break;
+                byte quote = buffer[p++];
+                int valueStart = p;
+                while (p < end && buffer[p] != quote)
+                    p++;
+                if (attributes.length < 4 * (attributeCount + 1)) {
+                    int[] larger = new int[attributes.length * 2];
+                    System.arraycopy(attributes, 0, larger, 0, attributes.length);
+                    attributes = larger;
+                }
+                attributes[4 * attributeCount] = keyStart;
+                attributes[4 * attributeCount + 1] = keyEnd;
+                attributes[4 * attributeCount + 2] = valueStart;
+                attributes[4 * attributeCount + 3] = p;
+                attributeCount++;
+                p++;
+            }
+        }
+    }
+
+    /**
+     * Resolve references and normalize whitespace of an attribute value the way XML parsers do
+     * @param raw: value as written in the file
+     * @return (String) value
+     */
+    private static String decode(String raw) {
+        StringBuilder answer = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            int semicolon = c == '&' ? raw.indexOf(';', i) : -1;
+            if (c == '\t' || c == '\n' || c == '\r') {
+                answer.append(' ');
+            } else if (semicolon < 0) {
+                answer.append(c);
+            } else {
+                String reference = raw.substring(i + 1, semicolon);
+                if (reference.startsWith("#x"))
+                    answer.appendCodePoint(Integer.parseInt(reference.substring(2), 16));
+                else if (reference.startsWith("#"))
+                    answer.appendCodePoint(Integer.parseInt(reference.substring(1)));
+                else if (reference.equals("amp"))
+                    answer.append('&');
+                else if (reference.equals("lt"))
+                    answer.append('<');
+                else if (reference.equals("gt"))
+                    answer.append('>');
+                else if (reference.equals("quot"))
+                    answer.append('"');
+                else if (reference.equals("apos"))
+                    answer.append('\'');
+                else
+                    answer.append(raw, i, semicolon + 1);
+                i = semicolon;
+            }
+        }
+        return answer.toString();
+    }
+
+    private boolean needsDecoding(int start, int end) {
+        for (int p = start; p < end; p++) {
+            byte b = buffer[p];
+            if (b == '&' || b == '\t' || b == '\n' || b == '\r')
+                return true;
+        }
+        return false;
+    }
+
+    private boolean equal(int start, int end, byte[] expected) {
+        if (end - start != expected.length)
+            return false;
+        for (int i = 0; i < expected.length; i++)
+            if (buffer[start + i] != expected[i])
+                return false;
+        return true;
+    }
+
+    private boolean startsWith(int p, String prefix) {
+        if (p + prefix.length() > limit)
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (buffer[p + i] != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    private int find(int p, String terminator) {
+        for (; p + terminator.length() <= limit; p++)
+            if (startsWith(p, terminator))
+                return p + terminator.length() - 1;
+        return -1;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -0,0 +1,174 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit RGB PNG images, compressing horizontal strips of rows in parallel on the raster workers.
+ * Each strip is deflated on its own and ends on a byte boundary with a sync flush, so the strips
+ * joined in order form a single zlib stream. Its checksum is combined from the strip checksums.
+ */
+public class PngEncoder {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    // Fewer rows than this per strip cost more in lost compression than they gain in parallelism
+    private static final int MIN_STRIP_ROWS = 32;
+    private static final int ADLER_BASE = 65521;
+    // Same level as the ImageIO PNG writer
+    private static final int COMPRESSION_LEVEL = 4;
+
+    /**
+     * Encode an image as PNG
+     * @param img: image of TYPE_INT_RGB or TYPE_INT_ARGB, alpha is dropped
+     * @param os: stream the PNG file is written to
+     * @param strips: largest number of strips compressed in parallel
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(BufferedImage img, OutputStream os, int strips) throws IOException {
+        write(img, os, strips, RasterWorkers.THREADS);
+    }
+
+    /**
+     * Encode an image as PNG on up to the given number of threads. The file only depends on the
+     * image and the number of strips, not on the threads compressing them
+     * @param img: image of TYPE_INT_RGB or TYPE_INT_ARGB, alpha is dropped
+     * @param os: stream the PNG file is written to
+     * @param strips: largest number of strips
+     * @param parallelism: largest number of threads, 1 compresses every strip on the calling thread
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(BufferedImage img, OutputStream os, int strips, int parallelism) throws IOException {
+        int width = img.getWidth(), height = img.getHeight();
+        int[] pixels = rgb(img);
+        int count = Math.max(1, Math.min(strips, height / MIN_STRIP_ROWS));
+        byte[][] compressed = new byte[count][];
+        long[] checksums = new long[count];
+        RasterWorkers.forEach(count, parallelism, s -> {
+            int first = (int) ((long) height * s / count), last = (int) ((long) height * (s + 1) / count);
+            byte[] rows = scanlines(pixels, width, first, last);
+            Adler32 adler = new Adler32();
+            adler.update(rows);
+            checksums[s] = adler.getValue();
+            compressed[s] = deflate(rows, s == count - 1);
+        });
+        long checksum = 1;
+        for (int s = 0; s < count; s++) {
+            int first = (int) ((long) height * s / count), last = (int) ((long) height * (s + 1) / count);
+            checksum = combine(checksum, checksums[s], (long) (last - first) * (3L * width + 1));
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream fields = new DataOutputStream(header);
+        fields.writeInt(width);
+        fields.writeInt(height);
+        // 8 bits per sample, color type 2 (RGB), deflate, filtering by row, no interlace
+        fields.write(new byte[]{8, 2, 0, 0, 0});
+        chunk(out, "IHDR", header.toByteArray());
+        // zlib header for deflate with a 32K window and the compression level
+        chunk(out, "IDAT", new byte[]{0x78, 0x5e});
+        for (byte[] strip : compressed)
+            chunk(out, "IDAT", strip);
+        chunk(out, "IDAT", new byte[]{(byte) (checksum >>> 24), (byte) (checksum >>> 16),
+                (byte) (checksum >>> 8), (byte) checksum});
+        chunk(out, "IEND", new byte[0]);
+        out.flush();
+    }
+
+    /**
+     * Returns the pixels of an image as packed RGB ints, without copying when they are stored that way
+     */
+    private static int[] rgb(BufferedImage img) {
+        int type = img.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            if (img.getRaster().getDataBuffer() instanceof DataBufferInt && img.getRaster().getParent() == null)
+                return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    /**
+     * Lay out rows [first, last) as PNG scanlines. Rows are not filtered: map tiles are mostly flat
+     * areas of a few colors, which deflate finds without filtering and compress smaller that way
+     * @return (byte[]) filter type 0 and RGB bytes of each row
+     */
+    private static byte[] scanlines(int[] pixels, int width, int first, int last) {
+        byte[] out = new byte[(last - first) * (3 * width + 1)];
+        int i = 0;
+        for (int y = first; y < last; y++) {
+            out[i++] = 0;
+            for (int x = 0, p = y * width; x < width; x++, p++) {
+                int rgb = pixels[p];
+                out[i++] = (byte) (rgb >> 16);
+                out[i++] = (byte) (rgb >> 8);
+                out[i++] = (byte) rgb;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Raw deflate of one strip, ending with a sync flush or, for the last strip, the final block
+     */
+    private static byte[] deflate(byte[] data, boolean last) {
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+        try {
+            deflater.setInput(data);
+            if (last)
+                deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[1 << 16];
+            while (true) {
+                int n = last ? deflater.deflate(buffer) : deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, n);
+                // A sync flush is complete once it leaves room in the buffer
+                if (last ? deflater.finished() : n < buffer.length && deflater.needsInput())
+                    break;
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Adler-32 of two blocks joined from the checksums of each, as zlib's adler32_combine
+     * @param first: checksum of the first block
+     * @param second: checksum of the second block
+     * @param length: length of the second block
+     * @return (long) checksum of both blocks
+     */
+    static long combine(long first, long second, long length) {
+        long remainder = length % ADLER_BASE;
+        long sum1 = first & 0xffff;
+        long sum2 = remainder * sum1 % ADLER_BASE;
+        sum1 += (second & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum2 >= 2L * ADLER_BASE)
+            sum2 -= 2L * ADLER_BASE;
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(name);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
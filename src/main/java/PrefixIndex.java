@@ -0,0 +1,27 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of values by the keys they were stored under, searched by key prefix
+ */
+public interface PrefixIndex<Value> {
+
+    /**
+     * Returns a list of values starting with the given prefix
+     * @param prefix: prefix of key
+     * @return list of values
+     */
+    List<Value> valuesWithPrefix(String prefix);
+
+    /**
+     * Returns the highest ranked values starting with the given prefix. Indexes without a ranking
+     * return the first values of valuesWithPrefix
+     * @param prefix: prefix of key
+     * @param limit: largest number of values returned
+     * @return list of values
+     */
+    default List<Value> valuesWithPrefix(String prefix, int limit) {
+        List<Value> values = valuesWithPrefix(prefix);
+        return values.size() > limit ? new ArrayList<>(values.subList(0, Math.max(limit, 0))) : values;
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of prefix lookups on a CompactTST for autocomplete, where each query usually extends the
+ * previous one by a character. The subtree node of every recent prefix is kept, so a longer prefix
+ * resumes the walk from the node of its longest cached prefix and only scans that smaller subtree.
+ * Results are kept per prefix and limit, and are shared between callers so they cannot be changed.
+ * Limits are rounded up to one of a few sizes before caching, so clients asking for slightly
+ * different limits share results.
+ */
+public class PrefixSearchCache<Value> {
+    // Limits results are cached for, larger ones other than Integer.MAX_VALUE are not cached
+    private static final int[] CACHED_LIMITS = {5, 10, 20, 50, 100};
+    // Largest limit whose results are cached
+    public static final int MAX_CACHED_LIMIT = CACHED_LIMITS[CACHED_LIMITS.length - 1];
+
+    private final CompactTST<Value> index;
+    private final BoundedCache<Prefix, Integer> nodes;
+    private final BoundedCache<String, List<Value>> results;
+
+    /**
+     * @param index: name index
+     * @param budget: approximate bytes of prefixes and result lists kept
+     */
+    public PrefixSearchCache(CompactTST<Value> index, long budget) {
+        this.index = index;
+        nodes = new BoundedCache<>(budget / 4, node -> 64L);
+        results = new BoundedCache<>(budget - budget / 4, values -> 32L + 8L * values.size());
+    }
+
+    /**
+     * Returns the values starting with the given prefix
+     * @param prefix: normalized prefix of key
+     * @param limit: largest number of values returned, Integer.MAX_VALUE returns all in index order
+     * @return read-only list of values, heaviest first if limited
+     */
+    public List<Value> valuesWithPrefix(String prefix, int limit) {
+        if (limit <= 0)
+            return Collections.emptyList();
+        int cachedLimit = cachedLimit(limit);
+        if (cachedLimit < 0)
+            return Collections.unmodifiableList(index.valuesUnder(node(prefix), limit));
+        List<Value> values = results.get(cachedLimit + ":" + prefix, key -> {
+            int node = node(prefix);
+            return Collections.unmodifiableList(cachedLimit == Integer.MAX_VALUE ? index.valuesUnder(node)
+                    : index.valuesUnder(node, cachedLimit));
+        });
+        // The heaviest values under a larger limit start with those under a smaller one
+        return values.size() > limit ? values.subList(0, limit) : values;
+    }
+
+    /**
+     * Returns the limit whose results answer a query with the given limit
+     * @param limit: positive limit of the query
+     * @return (int) smallest cached limit not below it, Integer.MAX_VALUE for all values, -1 if none
+     */
+    private static int cachedLimit(int limit) {
+        if (limit == Integer.MAX_VALUE)
+            return limit;
+        for (int cached : CACHED_LIMITS)
+            if (limit <= cached)
+                return cached;
+        return -1;
+    }
+
+    /**
+     * Returns the usage of the node and result caches
+     * @return (Map) statistics of each cache
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nodes", nodes.stats());
+        stats.put("results", results.stats());
+        return stats;
+    }
+
+    /**
+     * Returns the subtree of a prefix, counting one hit or miss of the node cache
+     */
+    private int node(String prefix) {
+        Prefix key = new Prefix(prefix, prefix.length());
+        Integer cached = nodes.get(key);
+        if (cached != null)
+            return cached;
+        int node = walk(prefix);
+        nodes.put(key, node);
+        return node;
+    }
+
+    /**
+     * Walk to the subtree of a prefix from the node of its longest shorter prefix that is cached.
+     * Shorter prefixes are probed without counting them as lookups
+     */
+    private int walk(String prefix) {
+        for (int length = prefix.length() - 1; length >= 2; length--) {
+            Integer shorter = nodes.peek(new Prefix(prefix, length));
+            // A shorter prefix with no subtree has no longer ones either
+            if (shorter != null)
+                return shorter < 0 ? -1 : index.subtree(shorter, prefix, length);
+        }
+        return index.subtree(prefix);
+    }
+
+    /**
+     * First characters of a string used as a key without copying them
+     */
+    private static final class Prefix {
+        final String text;
+        final int length;
+        final int hash;
+
+        Prefix(String text, int length) {
+            this.text = text;
+            this.length = length;
+            int h = 0;
+            for (int i = 0; i < length; i++)
+                h = 31 * h + text.charAt(i);
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Prefix))
+                return false;
+            Prefix other = (Prefix) o;
+            return length == other.length && hash == other.hash && text.regionMatches(0, other.text, 0, length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
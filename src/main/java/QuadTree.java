@@ -2,30 +2,78 @@ import java.util.*;
 
 
 public class QuadTree {
+    // Deepest level of the tile images, configured with -Dtiles.max.depth=18 for deeper tile sets
+    public static final int DEFAULT_MAX_DEPTH = Integer.getInteger("tiles.max.depth", 7);
+    // Tile indices of a level must fit in an int
+    private static final int DEPTH_LIMIT = 30;
+
     public QTreeNode root;
     private String imageRoot;
+    private final int maxDepth;
+    // Corners of the root, tiles are found from these without visiting nodes
+    private final double rootUlLat, rootUlLon, rootLrLat, rootLrLon;
 
     public QuadTree(String imageRoot) {
+        this(imageRoot, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Tree over the tiles covering MapServer.ROOT_* down to the given level
+     * @param imageRoot: directory of the tile images
+     * @param maxDepth: deepest level of the tile images
+     */
+    public QuadTree(String imageRoot, int maxDepth) {
+        this(imageRoot, maxDepth, MapServer.ROOT_ULLAT, MapServer.ROOT_ULLON, MapServer.ROOT_LRLAT, MapServer.ROOT_LRLON);
+    }
+
+    /**
+     * Tree over the tiles covering the given box. Only the root is created here, nodes below it are
+     * created when searchTree first visits them or when build is called, so startup and heap do
+     * not grow with the depth of the tile set
+     * @param imageRoot: directory of the tile images
+     * @param maxDepth: deepest level of the tile images
+     * @param ullat: upper left latitude of the root tile
+     * @param ullon: upper left longitude of the root tile
+     * @param lrlat: lower right latitude of the root tile
+     * @param lrlon: lower right longitude of the root tile
+     */
+    public QuadTree(String imageRoot, int maxDepth, double ullat, double ullon, double lrlat, double lrlon) {
+        if (maxDepth < 0 || maxDepth > DEPTH_LIMIT)
+            throw new IllegalArgumentException("Tile depth must be between 0 and " + DEPTH_LIMIT + ", got " + maxDepth);
         // Instantiate the root element of the tree with depth 0
-        // Use the ROOT_ULLAT, ROOT_ULLON, ROOT_LRLAT, ROOT_LRLON static variables of MapServer class
-        root = new QTreeNode("root",MapServer.ROOT_ULLAT,MapServer.ROOT_ULLON,MapServer.ROOT_LRLAT,MapServer.ROOT_LRLON,0);
+        root = new QTreeNode("root",ullat,ullon,lrlat,lrlon,0);
         // Save the imageRoot value to the instance variable
         this.imageRoot = imageRoot;
-        // Call the build method with depth 1
-        build(root,1);
+        this.maxDepth = maxDepth;
+        rootUlLat = ullat;
+        rootUlLon = ullon;
+        rootLrLat = lrlat;
+        rootLrLon = lrlon;
     }
 
     /**
-     * Recursively builds quadtree
-     * NOTE: Limited with depth 7 with respect to the input
+     * Recursively builds quadtree down to the deepest level of the tile images
      * @param subTreeRoot: root node
      * @param depth: current depth
      */
     public void build(QTreeNode subTreeRoot, int depth) {
         // Recursive method to build the tree as instructed
-        // Don't calculate after depth 7 (Exceeds input)
-        if (depth>7)
+        // Don't calculate after the deepest level (Exceeds input)
+        if (depth>maxDepth)
             return;
+        split(subTreeRoot, depth);
+        build(subTreeRoot.NW,depth+1);
+        build(subTreeRoot.NE,depth+1);
+        build(subTreeRoot.SW,depth+1);
+        build(subTreeRoot.SE,depth+1);
+    }
+
+    /**
+     * Create the four children of a node
+     * @param subTreeRoot: node to split
+     * @param depth: depth of the children
+     */
+    private void split(QTreeNode subTreeRoot, int depth) {
         // Calculate lat, lon values required
         double ullat = subTreeRoot.getUpperLeftLatitude();
         double ullon = subTreeRoot.getUpperLeftLongtitude();
@@ -36,15 +84,26 @@ public class QuadTree {
         // Prepare name of previous node
         String rawName = subTreeRoot.getName();
         if (rawName.equals("root")) rawName = "";
-        // Recursive call to make children for this node
+        // Make children for this node
         subTreeRoot.NW = new QTreeNode(rawName+"1",ullat,ullon,midlat,midlon,depth);
-        build(subTreeRoot.NW,depth+1);
         subTreeRoot.NE = new QTreeNode(rawName+"2",ullat,midlon,midlat,lrlon,depth);
-        build(subTreeRoot.NE,depth+1);
         subTreeRoot.SW = new QTreeNode(rawName+"3",midlat,ullon,lrlat,midlon,depth);
-        build(subTreeRoot.SW,depth+1);
         subTreeRoot.SE = new QTreeNode(rawName+"4",midlat,midlon,lrlat,lrlon,depth);
-        build(subTreeRoot.SE,depth+1);
+    }
+
+    /**
+     * Returns the children of a node, creating them on the first visit
+     * @param tile: node
+     * @return (QTreeNode[]) NW, NE, SW and SE children, null at the deepest level
+     */
+    private QTreeNode[] children(QTreeNode tile) {
+        synchronized (tile) {
+            if (tile.getDepth() >= maxDepth)
+                return null;
+            if (tile.NW == null)
+                split(tile, tile.getDepth()+1);
+            return new QTreeNode[]{tile.NW, tile.NE, tile.SW, tile.SE};
+        }
     }
 
     /**
@@ -59,6 +118,49 @@ public class QuadTree {
      * @return String to Object map with organized array
      */
     public Map<String, Object> search(Map<String, Double> params) {
+        double ullat = params.get("ullat"), ullon = params.get("ullon");
+        double lrlat = params.get("lrlat"), lrlon = params.get("lrlon");
+        double lonDpp = (lrlon-ullon)/params.get("w");
+        Map<String, Object> map = new HashMap<>();
+        // Tiles of a level form a 2^depth by 2^depth grid, take the first level fine enough
+        int depth = 0;
+        while (depth <= maxDepth && !(lonDppAt(depth) <= lonDpp))
+            depth++;
+        if (depth > maxDepth) {
+            map.put("query_success", false);
+            return map;
+        }
+        // Columns run east and rows run south, both intersecting the query box
+        int firstColumn = first(rootUlLon, rootLrLon, depth, ullon, lrlon);
+        int lastColumn = last(rootUlLon, rootLrLon, depth, ullon, lrlon);
+        int firstRow = first(rootUlLat, rootLrLat, depth, ullat, lrlat);
+        int lastRow = last(rootUlLat, rootLrLat, depth, ullat, lrlat);
+        if (firstColumn > lastColumn || firstRow > lastRow) {
+            map.put("query_success", false);
+            return map;
+        }
+
+        String[][] grid = new String[lastRow-firstRow+1][lastColumn-firstColumn+1];
+        char[] name = new char[depth];
+        for (int row = firstRow; row <= lastRow; row++)
+            for (int column = firstColumn; column <= lastColumn; column++)
+                grid[row-firstRow][column-firstColumn] = imageRoot+tileName(name, depth, row, column)+".png";
+        map.put("render_grid", grid);
+        map.put("raster_ul_lat", edge(rootUlLat, rootLrLat, depth, firstRow));
+        map.put("raster_ul_lon", edge(rootUlLon, rootLrLon, depth, firstColumn));
+        map.put("raster_lr_lat", edge(rootUlLat, rootLrLat, depth, lastRow+1));
+        map.put("raster_lr_lon", edge(rootUlLon, rootLrLon, depth, lastColumn+1));
+        map.put("depth", depth);
+        map.put("query_success", true);
+        return map;
+    }
+
+    /**
+     * Search for given query box by visiting the nodes of the tree, giving the same result as search
+     * @param params: query box as for search
+     * @return String to Object map with organized array
+     */
+    public Map<String, Object> searchTree(Map<String, Double> params) {
         // Instantiate a QTreeNode to represent the query box defined by the parameters
         QTreeNode node = new QTreeNode("node",params.get("ullat"),params.get("ullon"),params.get("lrlat"),params.get("lrlon"),0);
         // Calculate the lonDpp value of the query box
@@ -155,11 +257,119 @@ public class QuadTree {
         if (tile.getLonDPP() <= lonDpp)
             list.add(tile);
         else {
-            search(queryBox,tile.NW,lonDpp,list);
-            search(queryBox,tile.NE,lonDpp,list);
-            search(queryBox,tile.SW,lonDpp,list);
-            search(queryBox,tile.SE,lonDpp,list);
+            QTreeNode[] children = children(tile);
+            if (children == null)
+                return;
+            for (QTreeNode child : children)
+                search(queryBox,child,lonDpp,list);
+        }
+    }
+
+    /**
+     * Degrees of longitude per pixel of the tiles of a level, computed from the westmost tile
+     * the way QTreeNode does
+     * @param depth: level of the tiles
+     * @return (double) longitude distance per pixel
+     */
+    private double lonDppAt(int depth) {
+        return (edge(rootUlLon, rootLrLon, depth, 1)-rootUlLon)/MapServer.TILE_SIZE;
+    }
+
+    /**
+     * Coordinate where tile index of a level begins along one axis. Tile edges are computed by
+     * halving from the root as build does, so they are equal to the corners of the tree nodes
+     * @param start: coordinate where the root begins
+     * @param end: coordinate where the root ends
+     * @param depth: level of the tiles
+     * @param index: tile index from 0 to 2^depth, 2^depth gives the end of the last tile
+     * @return (double) coordinate
+     */
+    private static double edge(double start, double end, int depth, int index) {
+        if (index == 1<<depth)
+            return end;
+        for (int bit = depth-1; bit >= 0; bit--) {
+            double mid = (start+end)/2.000;
+            if ((index>>bit & 1) == 0)
+                end = mid;
+            else
+                start = mid;
+        }
+        return start;
+    }
+
+    /**
+     * First tile along one axis whose span overlaps the query span, edges touching do not overlap
+     * @return (int) tile index, 2^depth if no tile overlaps
+     */
+    private static int first(double start, double end, int depth, double q1, double q2) {
+        int tiles = 1<<depth;
+        double low = Math.min(q1, q2), high = Math.max(q1, q2);
+        // Guess from the tile size and correct the rounding against the exact edges
+        int i = guess(start, end, tiles, start < end ? low : high);
+        while (i > 0 && overlapsAfter(start, end, depth, i-1, low, high))
+            i--;
+        while (i < tiles && !overlapsAfter(start, end, depth, i, low, high))
+            i++;
+        return i < tiles && overlaps(start, end, depth, i, low, high) ? i : tiles;
+    }
+
+    /**
+     * Last tile along one axis whose span overlaps the query span
+     * @return (int) tile index, -1 if no tile overlaps
+     */
+    private static int last(double start, double end, int depth, double q1, double q2) {
+        int tiles = 1<<depth;
+        double low = Math.min(q1, q2), high = Math.max(q1, q2);
+        int i = guess(start, end, tiles, start < end ? high : low);
+        while (i < tiles-1 && overlapsBefore(start, end, depth, i+1, low, high))
+            i++;
+        while (i >= 0 && !overlapsBefore(start, end, depth, i, low, high))
+            i--;
+        return i >= 0 && overlaps(start, end, depth, i, low, high) ? i : -1;
+    }
+
+    private static int guess(double start, double end, int tiles, double q) {
+        double i = Math.floor((q-start)/(end-start)*tiles);
+        return i < 0 ? 0 : i >= tiles ? tiles-1 : (int) i;
+    }
+
+    /**
+     * Whether tile i does not lie wholly before the query span along the axis
+     */
+    private static boolean overlapsAfter(double start, double end, int depth, int i, double low, double high) {
+        double b = edge(start, end, depth, i+1);
+        return start < end ? b > low : b < high;
+    }
+
+    /**
+     * Whether tile i does not lie wholly after the query span along the axis
+     */
+    private static boolean overlapsBefore(double start, double end, int depth, int i, double low, double high) {
+        double a = edge(start, end, depth, i);
+        return start < end ? a < high : a > low;
+    }
+
+    /**
+     * Whether tile i overlaps the query span along the axis, as checkIntersection
+     */
+    private static boolean overlaps(double start, double end, int depth, int i, double low, double high) {
+        double a = edge(start, end, depth, i), b = edge(start, end, depth, i+1);
+        return Math.min(a, b) < high && Math.max(a, b) > low;
+    }
+
+    /**
+     * Name of a tile, one digit per level from the root: 1 NW, 2 NE, 3 SW and 4 SE
+     * @param name: buffer of depth characters
+     * @return (String) tile name, "root" for depth 0
+     */
+    private static String tileName(char[] name, int depth, int row, int column) {
+        if (depth == 0)
+            return "root";
+        for (int i = 0; i < depth; i++) {
+            int bit = depth-1-i;
+            name[i] = (char) ('1'+(column>>bit & 1)+2*(row>>bit & 1));
         }
+        return new String(name);
     }
 
     /**
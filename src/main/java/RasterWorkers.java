@@ -0,0 +1,77 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * Bounded pool for the parallel steps of rendering a raster, compositing tiles and compressing PNG
+ * strips. It is kept apart from the common fork-join pool, which distance matrices and contraction
+ * hierarchy queries use, so a burst of rasters cannot stall them and the other way round.
+ */
+public class RasterWorkers {
+    // Threads rendering rasters, shared by all requests, configured with -Draster.threads=8
+    public static final int THREADS = Integer.getInteger("raster.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, task -> {
+        Thread thread = new Thread(task, "raster-" + THREAD_IDS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Run a task for every index in [0, count) and wait for all of them. The calling thread works
+     * through the indices along with the pool, so it makes progress even when the pool is busy
+     * @param count: number of indices
+     * @param parallelism: largest number of threads working at once, 1 runs every index on the calling thread
+     * @param task: work for one index
+     */
+    public static void forEach(int count, int parallelism, IntConsumer task) {
+        int helpers = Math.min(count, parallelism) - 1;
+        if (helpers <= 0) {
+            for (int i = 0; i < count; i++)
+                task.accept(i);
+            return;
+        }
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            for (int i; (i = next.getAndIncrement()) < count; ) {
+                try {
+                    // Indices after a failure are only counted down
+                    if (failure.get() == null)
+                        task.accept(i);
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int h = 0; h < helpers; h++)
+            EXECUTOR.execute(worker);
+        worker.run();
+        // Tasks write into the caller's arrays, so wait for them even if interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+    }
+}
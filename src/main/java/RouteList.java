@@ -0,0 +1,36 @@
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of vertex ids backed by a primitive array, so long routes are not stored as
+ * one boxed node per vertex
+ */
+public class RouteList extends AbstractList<Long> implements RandomAccess {
+    private final long[] ids;
+
+    /**
+     * @param ids: vertex ids, the array is not copied and must not be changed afterwards
+     */
+    public RouteList(long[] ids) {
+        this.ids = ids;
+    }
+
+    @Override
+    public Long get(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns the id at a position without boxing
+     * @param index: position in the route
+     * @return (long) vertex id
+     */
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Routing state of one client: the endpoints of the last route, its stops and the route drawn on
+ * rastered images. Router reads and changes it while holding the session's lock, the current route
+ * is published as an immutable list so rastering can read it without locking.
+ */
+public class RouteSession {
+    private final String token;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    // Route endpoints and stops as vertex indices of GraphDB.compactGraph
+    private int start = -1, end = -1;
+    private Router.Mode mode = Router.DEFAULT_MODE;
+    private final List<Integer> stops = new ArrayList<>();
+    // Paths between consecutive route points, reused when a stop only splits one of them
+    private final List<Router.Leg> legs = new ArrayList<>();
+    private volatile List<Long> route = Collections.emptyList();
+
+    public RouteSession() {
+        this(null);
+    }
+
+    public RouteSession(String token) {
+        this.token = token;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the route to draw on rastered images
+     * @return (List) unmodifiable list of vertex ids
+     */
+    public List<Long> getRoute() {
+        return route;
+    }
+
+    void setRoute(List<Long> route) {
+        this.route = Collections.unmodifiableList(route);
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    Router.Mode getMode() {
+        return mode;
+    }
+
+    void setEndpoints(int start, int end, Router.Mode mode) {
+        this.start = start;
+        this.end = end;
+        this.mode = mode;
+    }
+
+    List<Integer> getStops() {
+        return stops;
+    }
+
+    List<Router.Leg> getLegs() {
+        return legs;
+    }
+
+    /**
+     * Forget the route, its endpoints and stops
+     */
+    synchronized void clear() {
+        start = -1;
+        end = -1;
+        stops.clear();
+        legs.clear();
+        route = Collections.emptyList();
+    }
+}
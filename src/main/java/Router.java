@@ -1,13 +1,113 @@
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
 
 
+/**
+ * Stateless routing service, per-client state lives in RouteSession so requests of different
+ * clients can be served in parallel.
+ */
 public class Router {
 
-    private static List<Vertex> stops = new ArrayList<>();
-    private static Vertex start, end;
+    /**
+     * Search strategy used to find the shortest path
+     */
+    public enum Mode {
+        // Plain Dijkstra, settles every vertex closer to the start than the destination
+        DIJKSTRA,
+        // A* guided by the straight-line distance to the destination
+        ASTAR,
+        // Dijkstra from both ends at once, meeting in the middle
+        BIDIRECTIONAL,
+        // Bidirectional upward search in the contraction hierarchy of the graph
+        CH;
+    }
+
+    // Mode used when a request does not ask for one, configured with -Drouter.mode=astar
+    public static final Mode DEFAULT_MODE = Enums.parse(System.getProperty("router.mode"), Mode.DIJKSTRA);
+
+    // Whether stops are reordered by network cost when a request does not say, -Drouter.stops.optimize=true
+    public static final boolean OPTIMIZE_STOPS = Boolean.getBoolean("router.stops.optimize");
+
+    // Time the stop order heuristic may spend on routes with too many stops to solve exactly
+    private static final long STOP_ORDER_BUDGET_MILLIS = Long.getLong("router.stops.budget.ms", 20);
+
+    // Time optimizing the stop order may take in all, cost matrix included. Past it the new stop is
+    // placed by straight-line distance instead, configured with -Drouter.stops.deadline.ms=500
+    private static final long STOP_ORDER_DEADLINE_MILLIS = Long.getLong("router.stops.deadline.ms", 250);
+
+    // Largest number of stops a route may have, configured with -Drouter.stops.max=50
+    public static final int MAX_STOPS = Integer.getInteger("router.stops.max", 25);
+
+    // Threads routing batches, shared by all batches, configured with -Drouter.batch.threads=8
+    private static final int BATCH_THREADS = Integer.getInteger("router.batch.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    // Pairs of a batch queued or in progress at once, bounds the memory a long batch takes
+    static final int BATCH_IN_FLIGHT = 4 * BATCH_THREADS;
+
+    private static final AtomicInteger BATCH_THREAD_IDS = new AtomicInteger();
+
+    private static final ExecutorService BATCH_EXECUTOR = Executors.newFixedThreadPool(BATCH_THREADS, task -> {
+        Thread thread = new Thread(task, "route-batch-" + BATCH_THREAD_IDS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * Return the shortest path between start and end points
+     * Shortest path between two consecutive points of a route
+     */
+    static final class Leg {
+        // Vertex indices of the points the leg connects
+        final int from, to;
+        // Vertex indices, empty if the end is not reachable
+        final int[] path;
+        // Sum of the edge weights along the path
+        final double cost;
+
+        Leg(int from, int to, int[] path, double cost) {
+            this.from = from;
+            this.to = to;
+            this.path = path;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Snapped endpoints and mode of a path, the key of the route cache
+     */
+    static final class LegKey {
+        final int start, end;
+        final Mode mode;
+
+        LegKey(int start, int end, Mode mode) {
+            this.start = start;
+            this.end = end;
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof LegKey)) return false;
+            LegKey key = (LegKey) o;
+            return start == key.start && end == key.end && mode == key.mode;
+        }
+
+        @Override
+        public int hashCode() {
+            return (start * 31 + end) * 31 + mode.ordinal();
+        }
+    }
+
+    /**
+     * Return the shortest path between start and end points using the default mode
      * @param g: graph object
      * @param stlon: longitude of start point
      * @param stlat: latitude of start point
@@ -16,106 +116,583 @@ public class Router {
      * @return list of vertex ids
      */
     public static LinkedList<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon, double destlat) {
-        // Use g.closest() to get start and end vertices
-        start = g.graph.getVertex(g.closest(stlon,stlat));
-        end = g.graph.getVertex(g.closest(destlon,destlat));
+        return shortestPath(g, stlon, stlat, destlon, destlat, DEFAULT_MODE);
+    }
+
+    /**
+     * Return the shortest path between start and end points
+     * @param g: graph object
+     * @param stlon: longitude of start point
+     * @param stlat: latitude of start point
+     * @param destlon: longitude of destination point
+     * @param destlat: latitude of destination point
+     * @param mode: search strategy
+     * @return list of vertex ids
+     */
+    public static LinkedList<Long> shortestPath(GraphDB g, double stlon, double stlat, double destlon, double destlat, Mode mode) {
+        // Use g.closestIndex() to get start and end vertices
+        return shortestPath(g, g.closestIndex(stlon,stlat), g.closestIndex(destlon,destlat), mode);
+    }
 
+    /**
+     * Return the shortest path of the session's client and remember it for stops and rastering
+     * @param g: graph object
+     * @param session: routing state of the client
+     * @param stlon: longitude of start point
+     * @param stlat: latitude of start point
+     * @param destlon: longitude of destination point
+     * @param destlat: latitude of destination point
+     * @param mode: search strategy
+     * @return list of vertex ids
+     */
+    public static LinkedList<Long> shortestPath(GraphDB g, RouteSession session, double stlon, double stlat,
+                                                double destlon, double destlat, Mode mode) {
+        int start = g.closestIndex(stlon,stlat);
+        int end = g.closestIndex(destlon,destlat);
+        Leg leg = leg(g, start, end, mode);
+        LinkedList<Long> route = ids(g.compactGraph, leg.path);
+        synchronized (session) {
+            session.setEndpoints(start, end, mode);
+            // Without stops the route is a single leg, otherwise the legs are rebuilt by the next stop
+            List<Leg> legs = session.getLegs();
+            legs.clear();
+            if (session.getStops().isEmpty())
+                legs.add(leg);
+            session.setRoute(route);
+        }
+        return route;
+    }
+
+    /**
+     * Return the shortest path between two vertices
+     * @param g: graph object
+     * @param start: start vertex index
+     * @param end: destination vertex index
+     * @param mode: search strategy
+     * @return list of vertex ids
+     */
+    private static LinkedList<Long> shortestPath(GraphDB g, int start, int end, Mode mode) {
+        return ids(g.compactGraph, leg(g, start, end, mode).path);
+    }
+
+    /**
+     * Find the shortest path between two vertices and its cost, answering from the route cache
+     * of the graph when the same path was found before
+     * @param g: graph object
+     * @param start: start vertex index
+     * @param end: destination vertex index
+     * @param mode: search strategy
+     * @return (Leg) path and cost, an empty path if either vertex is missing or end is not reachable
+     */
+    private static Leg leg(GraphDB g, int start, int end, Mode mode) {
+        if (start < 0 || end < 0)
+            return findLeg(g, start, end, mode);
+        return g.routeCache().get(new LegKey(start, end, mode), key -> findLeg(g, start, end, mode));
+    }
+
+    /**
+     * Search the shortest path between two vertices and its cost
+     * @param g: graph object
+     * @param start: start vertex index
+     * @param end: destination vertex index
+     * @param mode: search strategy
+     * @return (Leg) path and cost, an empty path if either vertex is missing or end is not reachable
+     */
+    private static Leg findLeg(GraphDB g, int start, int end, Mode mode) {
+        CompactGraph graph = g.compactGraph;
+        int[] path;
+        if (start < 0 || end < 0)
+            path = null;
+        else if (mode == Mode.CH)
+            path = g.contractionHierarchy().shortestPath(start, end);
+        else if (mode == Mode.BIDIRECTIONAL)
+            path = bidirectionalSearch(graph, start, end);
+        else
+            path = search(graph, start, end, mode);
+        if (path == null)
+            return new Leg(start, end, new int[0], 0.0);
+        // Edge weights are the distances between their endpoints
+        double cost = 0.0;
+        for (int i = 1; i < path.length; i++)
+            cost += graph.distance(path[i - 1], path[i]);
+        return new Leg(start, end, path, cost);
+    }
+
+    /**
+     * Returns ids of vertices as a linked list
+     * @param graph: graph object
+     * @param path: vertex indices
+     * @return list of vertex ids
+     */
+    private static LinkedList<Long> ids(CompactGraph graph, int[] path) {
         LinkedList<Long> answer = new LinkedList<>();
-        // Shortest distance to specified node
-        HashMap<Vertex,Double> distances = new HashMap<>();
-        // Save the last node used to reach specified node
-        HashMap<Vertex, Vertex> prev = new HashMap<>();
-        LinkedHashSet<Vertex> settledNodes = new LinkedHashSet<>();
-        // Priority queue to hold vertices by their distances
-        PriorityQueue<Vertex> unsettledNodes = new PriorityQueue<>(Comparator.comparing(distances::get));
-
-        // Give each node high distance
-        for (Vertex node: g.graph.getVertices())
-            distances.put(node, 999999.0);
+        for (int v : path)
+            answer.addLast(graph.id(v));
+        return answer;
+    }
+
+    /**
+     * Route a stream of origin and destination pairs on the batch threads, handing each route to
+     * the sink as soon as it is found. Routes may complete out of order, the sink receives the
+     * position of the pair in the stream and is only called by the calling thread, so a slow sink
+     * never holds up the batch threads shared with other batches.
+     * @param g: graph object
+     * @param pairs: pairs as {stlon, stlat, destlon, destlat}, read lazily, a null pair gives a null route
+     * @param mode: search strategy
+     * @param sink: receives the position of each pair and its list of vertex ids
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public static void shortestPaths(GraphDB g, Iterator<double[]> pairs, Mode mode,
+                                     BiConsumer<Integer, List<Long>> sink) throws InterruptedException {
+        // A pair holds its permit until its route is handed to the sink, so the queue never holds
+        // more than BATCH_IN_FLIGHT routes and the batch threads never wait for it
+        Semaphore inFlight = new Semaphore(BATCH_IN_FLIGHT);
+        BlockingQueue<BatchResult> results = new ArrayBlockingQueue<>(BATCH_IN_FLIGHT);
+        RuntimeException failure = null;
+        int index = 0;
+        try {
+            while (failure == null && pairs.hasNext()) {
+                double[] pair = pairs.next();
+                int position = index++;
+                // Hand finished routes to the sink while waiting for a free slot
+                while (!inFlight.tryAcquire())
+                    failure = deliver(results.take(), sink, failure, inFlight);
+                try {
+                    BATCH_EXECUTOR.execute(() -> {
+                        List<Long> route = null;
+                        RuntimeException error = null;
+                        try {
+                            route = pair == null ? null : shortestPath(g, pair[0], pair[1], pair[2], pair[3], mode);
+                        } catch (RuntimeException e) {
+                            error = e;
+                        } finally {
+                            results.add(new BatchResult(position, route, error));
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                for (BatchResult result; (result = results.poll()) != null; )
+                    failure = deliver(result, sink, failure, inFlight);
+            }
+        } finally {
+            // Wait for the pairs still being routed, also when reading the pairs failed
+            while (!inFlight.tryAcquire(BATCH_IN_FLIGHT))
+                failure = deliver(results.take(), sink, failure, inFlight);
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Route of a batch pair found by a batch thread
+     */
+    private static final class BatchResult {
+        final int position;
+        // List of vertex ids, null for a null pair
+        final List<Long> route;
+        // Exception thrown while routing, null on success
+        final RuntimeException failure;
+
+        BatchResult(int position, List<Long> route, RuntimeException failure) {
+            this.position = position;
+            this.route = route;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Hand a finished route to the sink unless the batch already failed, and free its slot
+     * @param result: finished route
+     * @param sink: receives the position of the pair and its list of vertex ids
+     * @param failure: first failure of the batch, null if none yet
+     * @param inFlight: slots of the batch
+     * @return (RuntimeException) first failure of the batch, null if none yet
+     */
+    private static RuntimeException deliver(BatchResult result, BiConsumer<Integer, List<Long>> sink,
+                                            RuntimeException failure, Semaphore inFlight) {
+        try {
+            if (failure != null)
+                return failure;
+            if (result.failure != null)
+                return result.failure;
+            sink.accept(result.position, result.route);
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Return the shortest path costs between every pair of source and target points. Points are
+     * snapped to vertices once, CH answers with bucket queries and the other modes run one Dijkstra
+     * per source that stops when all targets are settled. Searches run in parallel on the common
+     * fork-join pool, each worker thread with its own workspace.
+     * @param g: graph object
+     * @param sourceLons: longitudes of the sources
+     * @param sourceLats: latitudes of the sources
+     * @param targetLons: longitudes of the targets
+     * @param targetLats: latitudes of the targets
+     * @param mode: search strategy
+     * @return (double[][]) costs indexed by source and target, infinity where a target is not reachable
+     */
+    public static double[][] distanceMatrix(GraphDB g, double[] sourceLons, double[] sourceLats,
+                                            double[] targetLons, double[] targetLats, Mode mode) {
+        int[] sources = new int[sourceLons.length];
+        int[] targets = new int[targetLons.length];
+        for (int i = 0; i < sources.length; i++)
+            sources[i] = g.closestIndex(sourceLons[i], sourceLats[i]);
+        for (int j = 0; j < targets.length; j++)
+            targets[j] = g.closestIndex(targetLons[j], targetLats[j]);
+        return distanceMatrix(g, sources, targets, mode);
+    }
+
+    /**
+     * Return the shortest path costs between every pair of source and target vertices
+     * @param g: graph object
+     * @param sources: source vertex indices, -1 for a missing vertex
+     * @param targets: target vertex indices, -1 for a missing vertex
+     * @param mode: search strategy
+     * @return (double[][]) costs indexed by source and target, infinity where a target is not reachable
+     */
+    static double[][] distanceMatrix(GraphDB g, int[] sources, int[] targets, Mode mode) {
+        return distanceMatrix(g, sources, targets, mode, Long.MAX_VALUE);
+    }
+
+    /**
+     * Return the shortest path costs between every pair of source and target vertices, giving up
+     * once the deadline passes
+     * @param g: graph object
+     * @param sources: source vertex indices, -1 for a missing vertex
+     * @param targets: target vertex indices, -1 for a missing vertex
+     * @param mode: search strategy
+     * @param deadline: System.nanoTime() after which no more searches start, Long.MAX_VALUE for none
+     * @return (double[][]) costs indexed by source and target, infinity where a target is not
+     *         reachable, null if the deadline passed first
+     */
+    static double[][] distanceMatrix(GraphDB g, int[] sources, int[] targets, Mode mode, long deadline) {
+        if (mode == Mode.CH) {
+            double[][] answer = g.contractionHierarchy().distances(sources, targets);
+            return System.nanoTime() > deadline ? null : answer;
+        }
+        CompactGraph graph = g.compactGraph;
+        // Distinct targets in ascending order, the searches count down how many are left
+        int[] distinctTargets = Arrays.stream(targets).filter(t -> t >= 0).sorted().distinct().toArray();
+        double[][] answer = new double[sources.length][];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            // Rows left null once the deadline passes
+            if (System.nanoTime() > deadline)
+                return;
+            SearchWorkspace workspace = SearchWorkspace.forward(graph.size());
+            oneToMany(graph, workspace, sources[i], distinctTargets);
+            double[] row = new double[targets.length];
+            for (int j = 0; j < targets.length; j++)
+                row[j] = targets[j] >= 0 && workspace.isSettled(targets[j])
+                        ? workspace.distance(targets[j]) : Double.POSITIVE_INFINITY;
+            answer[i] = row;
+        });
+        for (double[] row : answer)
+            if (row == null)
+                return null;
+        return answer;
+    }
+
+    /**
+     * Dijkstra search from a source until every target is settled
+     * @param graph: graph object
+     * @param workspace: reset workspace, holds the distances afterwards
+     * @param source: source vertex index, -1 searches nothing
+     * @param targets: distinct target vertex indices in ascending order
+     */
+    private static void oneToMany(CompactGraph graph, SearchWorkspace workspace, int source, int[] targets) {
+        if (source < 0)
+            return;
+        int remaining = targets.length;
+        IndexedMinHeap unsettledNodes = workspace.heap;
+        workspace.update(source, 0.0, -1);
+        unsettledNodes.pushOrDecrease(source, 0.0);
+        while (!unsettledNodes.isEmpty() && remaining > 0) {
+            int evaluationNode = unsettledNodes.pop();
+            workspace.settle(evaluationNode);
+            if (Arrays.binarySearch(targets, evaluationNode) >= 0)
+                remaining--;
+            double distance = workspace.distance(evaluationNode);
+            for (int edge = graph.firstEdge(evaluationNode); edge < graph.lastEdge(evaluationNode); edge++) {
+                int destinationNode = graph.target(edge);
+                if (workspace.isSettled(destinationNode))
+                    continue;
+                double newDistance = distance+graph.weight(edge);
+                if (workspace.distance(destinationNode) > newDistance) {
+                    workspace.update(destinationNode, newDistance, evaluationNode);
+                    unsettledNodes.pushOrDecrease(destinationNode, newDistance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dijkstra or A* search from start until end is settled
+     * @param graph: graph object
+     * @param start: start vertex index
+     * @param end: destination vertex index
+     * @param mode: search strategy, DIJKSTRA or ASTAR
+     * @return (int[]) vertex indices of the path, null if end is not reachable
+     */
+    private static int[] search(CompactGraph graph, int start, int end, Mode mode) {
+        // Distances, previous nodes and the queue of unsettled nodes keyed by distance plus the
+        // estimate to the destination, which is the distance alone for Dijkstra
+        SearchWorkspace workspace = SearchWorkspace.forward(graph.size());
+        IndexedMinHeap unsettledNodes = workspace.heap;
+
         // Add source node to unsettledNodes
-        unsettledNodes.add(start);
-        distances.put(start, 0.0);
+        workspace.update(start, 0.0, -1);
+        unsettledNodes.pushOrDecrease(start, heuristic(graph, start, end, mode));
 
         while (!unsettledNodes.isEmpty()) {
-            // Remove the node with lowest distance from unsettledNodes and add it to settledNodes
-            Vertex evaluationNode = unsettledNodes.remove();
-            settledNodes.add(evaluationNode);
+            // Remove the node with lowest priority from unsettledNodes and settle it
+            int evaluationNode = unsettledNodes.pop();
+            workspace.settle(evaluationNode);
             if (evaluationNode==end) {
                 break;
             }
             // Evaluate neighbors
-            for (Edge edge: g.graph.edgesFrom(evaluationNode)) {
-                Vertex destinationNode = edge.getDestination();
-                if (settledNodes.contains(destinationNode))
+            double distance = workspace.distance(evaluationNode);
+            for (int edge = graph.firstEdge(evaluationNode); edge < graph.lastEdge(evaluationNode); edge++) {
+                int destinationNode = graph.target(edge);
+                if (workspace.isSettled(destinationNode))
                     continue;
-                double edgeDistance = edge.getWeight();
-                double newDistance = distances.get(evaluationNode)+edgeDistance;
-                if (distances.get(destinationNode) > newDistance) {
-                    distances.put(destinationNode, newDistance);
-                    prev.put(destinationNode, evaluationNode);
-                    unsettledNodes.add(destinationNode);
+                double newDistance = distance+graph.weight(edge);
+                if (workspace.distance(destinationNode) > newDistance) {
+                    workspace.update(destinationNode, newDistance, evaluationNode);
+                    unsettledNodes.pushOrDecrease(destinationNode,
+                            newDistance+heuristic(graph, destinationNode, end, mode));
                 }
             }
         }
+        if (!workspace.isSettled(end))
+            return null;
         // Construct route by backtracking
-        Vertex iterator = end;
-        while (iterator != start) {
-            if (!prev.containsKey(iterator))
-                return new LinkedList<>();
-            answer.addFirst(iterator.getId());
-            iterator = prev.get(iterator);
+        return backtrack(workspace, end);
+    }
+
+    /**
+     * Dijkstra running forward from start over outgoing edges and backward from end over incoming
+     * edges. It stops once the smallest queued distances of both sides add up to at least the
+     * shortest path found through a vertex reached by both.
+     * @param graph: graph object
+     * @param start: start vertex index
+     * @param end: destination vertex index
+     * @return (int[]) vertex indices of the path, null if end is not reachable
+     */
+    private static int[] bidirectionalSearch(CompactGraph graph, int start, int end) {
+        // The parent of a vertex is the previous vertex towards start on the forward side,
+        // and the next vertex towards end on the backward side
+        SearchWorkspace forwardSpace = SearchWorkspace.forward(graph.size());
+        SearchWorkspace backwardSpace = SearchWorkspace.backward(graph.size());
+        forwardSpace.update(start, 0.0, -1);
+        forwardSpace.heap.pushOrDecrease(start, 0.0);
+        backwardSpace.update(end, 0.0, -1);
+        backwardSpace.heap.pushOrDecrease(end, 0.0);
+        double best = start == end ? 0.0 : Double.POSITIVE_INFINITY;
+        int meeting = start == end ? start : -1;
+
+        while (!forwardSpace.heap.isEmpty() && !backwardSpace.heap.isEmpty()
+                && forwardSpace.heap.peekKey() + backwardSpace.heap.peekKey() < best) {
+            // Expand the side with the smaller queue
+            boolean forward = forwardSpace.heap.size() <= backwardSpace.heap.size();
+            SearchWorkspace workspace = forward ? forwardSpace : backwardSpace;
+            SearchWorkspace other = forward ? backwardSpace : forwardSpace;
+
+            int evaluationNode = workspace.heap.pop();
+            workspace.settle(evaluationNode);
+            double distance = workspace.distance(evaluationNode);
+            int first = forward ? graph.firstEdge(evaluationNode) : graph.firstReverseEdge(evaluationNode);
+            int last = forward ? graph.lastEdge(evaluationNode) : graph.lastReverseEdge(evaluationNode);
+            for (int edge = first; edge < last; edge++) {
+                int neighbor = forward ? graph.target(edge) : graph.reverseSource(edge);
+                if (workspace.isSettled(neighbor))
+                    continue;
+                double newDistance = distance + (forward ? graph.weight(edge) : graph.reverseWeight(edge));
+                if (workspace.distance(neighbor) > newDistance) {
+                    workspace.update(neighbor, newDistance, evaluationNode);
+                    workspace.heap.pushOrDecrease(neighbor, newDistance);
+                }
+                // Both sides reached the neighbor, the path through it is a candidate
+                double through = workspace.distance(neighbor) + other.distance(neighbor);
+                if (through < best) {
+                    best = through;
+                    meeting = neighbor;
+                }
+            }
         }
-        answer.addFirst(start.getId());
-        // Return ids of vertices as a linked list
-        return answer;
+        if (meeting < 0)
+            return null;
+
+        // Stitch the forward chain up to the meeting vertex with the backward chain after it
+        int[] forwardPath = backtrack(forwardSpace, meeting);
+        int length = forwardPath.length;
+        for (int v = backwardSpace.parent(meeting); v >= 0; v = backwardSpace.parent(v))
+            length++;
+        int[] path = Arrays.copyOf(forwardPath, length);
+        for (int v = backwardSpace.parent(meeting), i = forwardPath.length; v >= 0; v = backwardSpace.parent(v), i++)
+            path[i] = v;
+        return path;
+    }
+
+    /**
+     * Follow parents from a vertex back to the source of the search
+     * @param workspace: finished search
+     * @param v: last vertex of the path
+     * @return (int[]) vertex indices from the source to v
+     */
+    private static int[] backtrack(SearchWorkspace workspace, int v) {
+        int length = 0;
+        for (int u = v; u >= 0; u = workspace.parent(u))
+            length++;
+        int[] path = new int[length];
+        for (int u = v, i = length - 1; u >= 0; u = workspace.parent(u), i--)
+            path[i] = u;
+        return path;
+    }
+
+    /**
+     * Lower bound of the remaining distance from a vertex to the destination.
+     * Edge weights are the euclidean distance between their endpoints, so the straight-line
+     * distance never overestimates and is consistent, A* settles each vertex once.
+     * @param graph: graph object
+     * @param v: vertex index
+     * @param target: destination vertex index
+     * @param mode: search strategy
+     * @return (double) estimate
+     */
+    private static double heuristic(CompactGraph graph, int v, int target, Mode mode) {
+        if (mode == Mode.ASTAR)
+            return graph.distance(v, target);
+        return 0.0;
     }
 
     /**
-     * Add a new stop to route and recalculate the route respectively
+     * Add a new stop to the session's route and recalculate the route respectively, ordering
+     * stops as configured by router.stops.optimize
      * @param g: graph object
+     * @param session: routing state of the client
      * @param lat: latitude of the new stop
      * @param lon: longitude of the new stop
-     * @return list of vertex ids
+     * @return read-only list of vertex ids
      */
-    public static LinkedList<Long> addStop(GraphDB g, double lat, double lon) {
-        // Find the closest vertex to the stop coordinates using g.closest()
-        // Add the stop to correct place in stop list
-        LinkedList<Long> route = new LinkedList<>();
-        Vertex newStop = g.graph.getVertex(g.closest(lon, lat));
-        boolean inserted = false;
-        for (int i = 0; i < stops.size(); i++) {
-            if (g.distance(start, stops.get(i)) >= g.distance(start, newStop)) {
-                stops.add(i, newStop);
-                inserted = true;
-                break;
+    public static List<Long> addStop(GraphDB g, RouteSession session, double lat, double lon) {
+        return addStop(g, session, lat, lon, OPTIMIZE_STOPS);
+    }
+
+    /**
+     * Add a new stop to the session's route and recalculate the route respectively. Stops are
+     * visited by straight-line distance from the start, or in the order with the lowest network
+     * cost when optimizing and it is found within router.stops.deadline.ms. Legs between the same
+     * points as before are reused.
+     * @param g: graph object
+     * @param session: routing state of the client
+     * @param lat: latitude of the new stop
+     * @param lon: longitude of the new stop
+     * @param optimize: reorder all stops to minimize the route cost
+     * @return read-only list of vertex ids
+     * @throws IllegalStateException if the route already has MAX_STOPS stops
+     */
+    public static List<Long> addStop(GraphDB g, RouteSession session, double lat, double lon, boolean optimize) {
+        long deadline = System.nanoTime() + STOP_ORDER_DEADLINE_MILLIS * 1000000;
+        // Find the closest vertex to the stop coordinates using g.closestIndex()
+        CompactGraph graph = g.compactGraph;
+        int newStop = g.closestIndex(lon, lat);
+        synchronized (session) {
+            // A stop can only be added to an existing route
+            if (session.getStart() < 0 || session.getEnd() < 0 || newStop < 0)
+                return new RouteList(new long[0]);
+            int start = session.getStart();
+            int end = session.getEnd();
+            List<Integer> stops = session.getStops();
+            List<Leg> legs = session.getLegs();
+            if (stops.size() >= MAX_STOPS)
+                throw new IllegalStateException("Route already has " + MAX_STOPS + " stops");
+            if (!optimize || !orderStops(g, start, stops, newStop, end, session.getMode(), deadline)) {
+                // Add the stop to correct place in stop list
+                int position = stops.size();
+                for (int i = 0; i < stops.size(); i++) {
+                    if (graph.distance(start, stops.get(i)) >= graph.distance(start, newStop)) {
+                        position = i;
+                        break;
+                    }
+                }
+                stops.add(position, newStop);
             }
+
+            // Leg i goes from the previous point to stop i, the last leg ends at the destination.
+            // Legs are looked up by their endpoints, so only the ones next to the new stop or
+            // between reordered stops are searched
+            HashMap<Long, Leg> previousLegs = new HashMap<>();
+            for (Leg leg : legs)
+                previousLegs.put((long) leg.from << 32 | leg.to, leg);
+            legs.clear();
+            int legStart = start;
+            for (int i = 0; i <= stops.size(); i++) {
+                int legEnd = i < stops.size() ? stops.get(i) : end;
+                Leg leg = previousLegs.get((long) legStart << 32 | legEnd);
+                legs.add(leg != null ? leg : leg(g, legStart, legEnd, session.getMode()));
+                legStart = legEnd;
+            }
+
+            // Concatenate the legs, a stop ends one leg and starts the next
+            int length = 0;
+            for (Leg leg : legs)
+                length += leg.path.length;
+            long[] ids = new long[length];
+            int i = 0;
+            for (Leg leg : legs)
+                for (int v : leg.path)
+                    ids[i++] = graph.id(v);
+            RouteList route = new RouteList(ids);
+            session.setRoute(route);
+            return route;
         }
-        if (!inserted)
-            stops.add(newStop);
-
-        // Recalculate your route when a stop is added and return the new route
-        Vertex originalStart = start;
-        Vertex originalEnd = end;
-        for (Vertex stop : stops) {
-            LinkedList<Long> pathSlice = shortestPath(g, start.getLng(), start.getLat(), stop.getLng(), stop.getLat());
-            for (Long l : pathSlice)
-                route.addLast(l);
-            start = stop;
-        }
-        LinkedList<Long> pathSlice = shortestPath(g, start.getLng(), start.getLat(), originalEnd.getLng(), originalEnd.getLat());
-        start = originalStart;
-        end = originalEnd;
-        for (Long l : pathSlice)
-            route.addLast(l);
-        return route;
     }
 
     /**
-     * Clear the route
+     * Add a stop and reorder all stops to minimize the network cost of the route through them
+     * @param g: graph object
+     * @param start: start vertex index
+     * @param stops: stop vertex indices, reordered in place
+     * @param newStop: vertex index of the stop to add
+     * @param end: destination vertex index
+     * @param mode: search strategy
+     * @param deadline: System.nanoTime() by which the order must be found
+     * @return (boolean) whether the stop was added, false leaves stops unchanged if the costs
+     *         between the stops took past the deadline
+     */
+    private static boolean orderStops(GraphDB g, int start, List<Integer> stops, int newStop, int end, Mode mode,
+                                      long deadline) {
+        int[] points = new int[stops.size() + 3];
+        points[0] = start;
+        for (int i = 0; i < stops.size(); i++)
+            points[i + 1] = stops.get(i);
+        points[points.length - 2] = newStop;
+        points[points.length - 1] = end;
+        double[][] cost = distanceMatrix(g, points, points, mode, deadline);
+        if (cost == null)
+            return false;
+        long now = System.nanoTime();
+        int[] order = StopOrder.order(cost, Math.min(deadline - now, STOP_ORDER_BUDGET_MILLIS * 1000000));
+        stops.add(newStop);
+        for (int i = 0; i < order.length; i++)
+            stops.set(i, points[order[i]]);
+        return true;
+    }
+
+    /**
+     * Clear the session's route
+     * @param session: routing state of the client
      */
-    public static void clearRoute() {
-        start = null;
-        end = null;
-        stops = new ArrayList<>();
+    public static void clearRoute(RouteSession session) {
+        session.clear();
     }
 }
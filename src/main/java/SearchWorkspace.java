@@ -0,0 +1,116 @@
+import java.util.Arrays;
+
+/**
+ * Reusable state of one shortest path search: tentative distances, parents, settled flags and the
+ * queue. Entries are only valid when their stamp matches the current epoch, so starting a new
+ * search is O(1) and a short search costs in proportion to the vertices it touches.
+ */
+public class SearchWorkspace {
+    private static final ThreadLocal<SearchWorkspace> FORWARD = new ThreadLocal<>();
+    private static final ThreadLocal<SearchWorkspace> BACKWARD = new ThreadLocal<>();
+
+    private final double[] distances;
+    private final int[] parents;
+    // Epoch in which a vertex was reached and settled
+    private final int[] reached, settled;
+    private int epoch;
+    public final IndexedMinHeap heap;
+
+    /**
+     * Create a workspace for graphs of up to capacity vertices
+     * @param capacity: number of vertices
+     */
+    public SearchWorkspace(int capacity) {
+        distances = new double[capacity];
+        parents = new int[capacity];
+        reached = new int[capacity];
+        settled = new int[capacity];
+        heap = new IndexedMinHeap(capacity);
+    }
+
+    /**
+     * Returns the workspace of the calling thread for forward searches, reset and ready for use
+     * @param size: number of vertices of the graph
+     * @return (SearchWorkspace) workspace
+     */
+    public static SearchWorkspace forward(int size) {
+        return get(FORWARD, size);
+    }
+
+    /**
+     * Returns the workspace of the calling thread for backward searches, reset and ready for use
+     * @param size: number of vertices of the graph
+     * @return (SearchWorkspace) workspace
+     */
+    public static SearchWorkspace backward(int size) {
+        return get(BACKWARD, size);
+    }
+
+    private static SearchWorkspace get(ThreadLocal<SearchWorkspace> local, int size) {
+        SearchWorkspace workspace = local.get();
+        if (workspace == null || workspace.capacity() < size) {
+            workspace = new SearchWorkspace(size);
+            local.set(workspace);
+        }
+        workspace.reset();
+        return workspace;
+    }
+
+    public int capacity() {
+        return distances.length;
+    }
+
+    /**
+     * Forget the previous search
+     */
+    public void reset() {
+        heap.clear();
+        if (++epoch == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            epoch = 1;
+        }
+    }
+
+    public boolean isReached(int v) {
+        return reached[v] == epoch;
+    }
+
+    /**
+     * Returns the tentative distance of a vertex
+     * @param v: vertex index
+     * @return (double) distance, infinity if the vertex was not reached
+     */
+    public double distance(int v) {
+        return reached[v] == epoch ? distances[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the vertex or edge the search reached a vertex from
+     * @param v: vertex index
+     * @return (int) parent, -1 if the vertex was not reached or is a source
+     */
+    public int parent(int v) {
+        return reached[v] == epoch ? parents[v] : -1;
+    }
+
+    /**
+     * Record a tentative distance for a vertex
+     * @param v: vertex index
+     * @param distance: distance from the source
+     * @param parent: vertex or edge the vertex was reached from, -1 for a source
+     */
+    public void update(int v, double distance, int parent) {
+        reached[v] = epoch;
+        distances[v] = distance;
+        parents[v] = parent;
+    }
+
+    public boolean isSettled(int v) {
+        return settled[v] == epoch;
+    }
+
+    public void settle(int v) {
+        settled[v] = epoch;
+    }
+}
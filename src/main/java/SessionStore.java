@@ -0,0 +1,68 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routing sessions keyed by client token. Sessions idle for longer than the timeout are dropped
+ * the next time the store sweeps, which happens every SWEEP_INTERVAL new sessions.
+ */
+public class SessionStore {
+    private static final int SWEEP_INTERVAL = 256;
+
+    private final ConcurrentHashMap<String, RouteSession> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long timeoutMillis;
+    private int created;
+
+    /**
+     * @param timeoutMillis: idle time after which a session is dropped
+     */
+    public SessionStore(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the session of the token, creating a new one with a fresh token if it is unknown
+     * @param token: client token, may be null
+     * @return (RouteSession) session
+     */
+    public RouteSession get(String token) {
+        RouteSession session = find(token);
+        if (session != null)
+            return session;
+        session = new RouteSession(newToken());
+        sessions.put(session.getToken(), session);
+        synchronized (this) {
+            if (++created % SWEEP_INTERVAL == 0)
+                sweep();
+        }
+        return session;
+    }
+
+    /**
+     * Returns the session of the token without creating one
+     * @param token: client token, may be null
+     * @return (RouteSession) session, null if the token is unknown
+     */
+    public RouteSession find(String token) {
+        RouteSession session = token == null ? null : sessions.get(token);
+        if (session != null)
+            session.touch();
+        return session;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private void sweep() {
+        long limit = System.currentTimeMillis() - timeoutMillis;
+        sessions.values().removeIf(session -> session.getLastAccess() < limit);
+    }
+}
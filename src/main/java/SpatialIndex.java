@@ -0,0 +1,192 @@
+/**
+ * Static 2-d tree over a fixed set of points, used to snap coordinates to graph vertices.
+ * The tree is implicit: points are reordered so that the median of every range is its node,
+ * splitting alternately on longitude and latitude, so no node objects are allocated.
+ */
+public class SpatialIndex {
+    private final double[] lats, lons;
+    // Position of each tree slot in the arrays the index was built from
+    private final int[] items;
+
+    /**
+     * Build the index over the given points, lats[i] and lons[i] describe point i
+     * @param lats: latitude values
+     * @param lons: longitude values
+     */
+    public SpatialIndex(double[] lats, double[] lons) {
+        int n = lats.length;
+        this.lats = lats.clone();
+        this.lons = lons.clone();
+        this.items = new int[n];
+        for (int i = 0; i < n; i++)
+            items[i] = i;
+        build(0, n, 0);
+    }
+
+    /**
+     * Returns the number of indexed points
+     * @return (int) size
+     */
+    public int size() {
+        return items.length;
+    }
+
+    /**
+     * Returns the point closest to the given latitude and longitude values
+     * @param lon: longitude value
+     * @param lat: latitude value
+     * @return (int) position of the point in the arrays the index was built from, -1 if empty
+     */
+    public int nearest(double lon, double lat) {
+        if (items.length == 0)
+            return -1;
+        int[] best = {-1};
+        double[] bestDistance = {Double.POSITIVE_INFINITY};
+        nearest(0, items.length, 0, lon, lat, best, bestDistance);
+        return items[best[0]];
+    }
+
+    /**
+     * Returns the k points closest to the given latitude and longitude values, nearest first
+     * @param lon: longitude value
+     * @param lat: latitude value
+     * @param k: maximum number of points to return
+     * @return (int[]) positions of the points in the arrays the index was built from
+     */
+    public int[] kNearest(double lon, double lat, int k) {
+        k = Math.min(k, items.length);
+        if (k <= 0)
+            return new int[0];
+        // Max-heap on distance keeps the current k best candidates
+        int[] heap = new int[k];
+        double[] heapDistance = new double[k];
+        int size = kNearest(0, items.length, 0, lon, lat, heap, heapDistance, 0);
+        // Pop the heap from the back to get the points in ascending distance
+        int[] answer = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            answer[i] = items[heap[0]];
+            heap[0] = heap[i];
+            heapDistance[0] = heapDistance[i];
+            siftDown(heap, heapDistance, 0, i);
+        }
+        return answer;
+    }
+
+    /**
+     * Recursively partitions the range around its median on the axis of the given depth
+     * @param lo: first slot of the range
+     * @param hi: slot after the last one of the range
+     * @param depth: depth of the range's node
+     */
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1)
+            return;
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 2 == 0 ? lons : lats);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Quickselect, puts the k-th smallest slot of [lo, hi] by key in place
+     */
+    private void select(int lo, int hi, int k, double[] key) {
+        while (hi > lo) {
+            double pivot = key[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (key[i] < pivot) i++;
+                while (key[j] > pivot) j--;
+                if (i <= j)
+                    swap(i++, j--);
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double lat = lats[i]; lats[i] = lats[j]; lats[j] = lat;
+        double lon = lons[i]; lons[i] = lons[j]; lons[j] = lon;
+        int item = items[i]; items[i] = items[j]; items[j] = item;
+    }
+
+    private double squaredDistance(int slot, double lon, double lat) {
+        double dLat = lats[slot] - lat;
+        double dLon = lons[slot] - lon;
+        return dLat * dLat + dLon * dLon;
+    }
+
+    private void nearest(int lo, int hi, int depth, double lon, double lat, int[] best, double[] bestDistance) {
+        if (lo >= hi)
+            return;
+        int mid = (lo + hi) >>> 1;
+        double d = squaredDistance(mid, lon, lat);
+        if (d < bestDistance[0]) {
+            bestDistance[0] = d;
+            best[0] = mid;
+        }
+        double diff = depth % 2 == 0 ? lon - lons[mid] : lat - lats[mid];
+        // Visit the side containing the query first, the other one only if it can hold a closer point
+        if (diff < 0) {
+            nearest(lo, mid, depth + 1, lon, lat, best, bestDistance);
+            if (diff * diff < bestDistance[0])
+                nearest(mid + 1, hi, depth + 1, lon, lat, best, bestDistance);
+        } else {
+            nearest(mid + 1, hi, depth + 1, lon, lat, best, bestDistance);
+            if (diff * diff < bestDistance[0])
+                nearest(lo, mid, depth + 1, lon, lat, best, bestDistance);
+        }
+    }
+
+    private int kNearest(int lo, int hi, int depth, double lon, double lat, int[] heap, double[] heapDistance, int size) {
+        if (lo >= hi)
+            return size;
+        int mid = (lo + hi) >>> 1;
+        double d = squaredDistance(mid, lon, lat);
+        if (size < heap.length) {
+            // Heap is not full yet, sift the new candidate up
+            int i = size++;
+            while (i > 0 && heapDistance[(i - 1) / 2] < d) {
+                heap[i] = heap[(i - 1) / 2];
+                heapDistance[i] = heapDistance[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = mid;
+            heapDistance[i] = d;
+        } else if (d < heapDistance[0]) {
+            // Replace the farthest candidate
+            heap[0] = mid;
+            heapDistance[0] = d;
+            siftDown(heap, heapDistance, 0, size);
+        }
+        double diff = depth % 2 == 0 ? lon - lons[mid] : lat - lats[mid];
+        int nearLo = diff < 0 ? lo : mid + 1, nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo, farHi = diff < 0 ? hi : mid;
+        size = kNearest(nearLo, nearHi, depth + 1, lon, lat, heap, heapDistance, size);
+        if (size < heap.length || diff * diff < heapDistance[0])
+            size = kNearest(farLo, farHi, depth + 1, lon, lat, heap, heapDistance, size);
+        return size;
+    }
+
+    private static void siftDown(int[] heap, double[] heapDistance, int i, int size) {
+        int item = heap[i];
+        double d = heapDistance[i];
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heapDistance[child + 1] > heapDistance[child])
+                child++;
+            if (heapDistance[child] <= d)
+                break;
+            heap[i] = heap[child];
+            heapDistance[i] = heapDistance[child];
+            i = child;
+        }
+        heap[i] = item;
+        heapDistance[i] = d;
+    }
+}
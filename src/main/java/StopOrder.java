@@ -0,0 +1,184 @@
+import java.util.Arrays;
+
+/**
+ * Orders the stops of a route to minimize its total cost. Point 0 of the cost matrix is the start,
+ * the last point is the end and the points between are the stops, which may be visited in any order.
+ * Small instances are solved exactly with the Held-Karp dynamic program, larger ones are improved
+ * from the cheaper of the given order and a nearest neighbor tour by 2-opt and relocation moves
+ * until the time budget runs out, which is checked before each move is priced. The result is
+ * never more expensive than the given order.
+ */
+public class StopOrder {
+    // Largest number of stops solved exactly, the program takes 2^k * k^2 steps
+    static final int MAX_EXACT_STOPS = 12;
+
+    /**
+     * Returns the cheapest order of the stops
+     * @param cost: costs between points indexed [from][to], infinity where there is no path
+     * @param budgetNanos: time the heuristic may spend improving the order
+     * @return (int[]) stops as point indices from 1 to cost.length - 2, in visiting order, the given
+     *         order of the points if no order is cheaper
+     */
+    public static int[] order(double[][] cost, long budgetNanos) {
+        int k = cost.length - 2;
+        if (k <= 1)
+            return identity(Math.max(k, 0));
+        if (k <= MAX_EXACT_STOPS)
+            return exact(cost, k);
+        return heuristic(cost, k, System.nanoTime() + budgetNanos);
+    }
+
+    /**
+     * Cost of visiting the stops in the given order between the start and the end
+     * @param cost: costs between points
+     * @param order: stops in visiting order
+     * @return (double) total cost
+     */
+    public static double total(double[][] cost, int[] order) {
+        int end = cost.length - 1;
+        double total = 0.0;
+        int previous = 0;
+        for (int stop : order) {
+            total += cost[previous][stop];
+            previous = stop;
+        }
+        return total + cost[previous][end];
+    }
+
+    /**
+     * Held-Karp over subsets of the stops, best[set][last] is the cheapest path from the start
+     * through the stops in set ending at stop last
+     */
+    private static int[] exact(double[][] cost, int k) {
+        int end = k + 1;
+        int sets = 1 << k;
+        double[][] best = new double[sets][k];
+        int[][] previous = new int[sets][k];
+        for (double[] row : best)
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+        for (int last = 0; last < k; last++) {
+            best[1 << last][last] = cost[0][last + 1];
+            previous[1 << last][last] = -1;
+        }
+        for (int set = 1; set < sets; set++) {
+            for (int last = 0; last < k; last++) {
+                if ((set & (1 << last)) == 0 || Double.isInfinite(best[set][last]))
+                    continue;
+                for (int next = 0; next < k; next++) {
+                    if ((set & (1 << next)) != 0)
+                        continue;
+                    int extended = set | (1 << next);
+                    double d = best[set][last] + cost[last + 1][next + 1];
+                    if (d < best[extended][next]) {
+                        best[extended][next] = d;
+                        previous[extended][next] = last;
+                    }
+                }
+            }
+        }
+        int full = sets - 1;
+        int last = 0;
+        double bestTotal = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < k; i++) {
+            double d = best[full][i] + cost[i + 1][end];
+            if (d < bestTotal) {
+                bestTotal = d;
+                last = i;
+            }
+        }
+        // Every order is infinite, keep the stops as they are
+        if (Double.isInfinite(bestTotal))
+            return identity(k);
+        int[] order = new int[k];
+        for (int i = k - 1, set = full; i >= 0; i--) {
+            order[i] = last + 1;
+            int before = previous[set][last];
+            set &= ~(1 << last);
+            last = before;
+        }
+        return order;
+    }
+
+    private static int[] heuristic(double[][] cost, int k, long deadline) {
+        // Nearest neighbor tour from the start
+        int[] order = new int[k];
+        boolean[] visited = new boolean[k + 2];
+        int current = 0;
+        for (int i = 0; i < k; i++) {
+            int nearest = -1;
+            for (int stop = 1; stop <= k; stop++)
+                if (!visited[stop] && (nearest < 0 || cost[current][stop] < cost[current][nearest]))
+                    nearest = stop;
+            visited[nearest] = true;
+            order[i] = nearest;
+            current = nearest;
+        }
+        double total = total(cost, order);
+        // Keep the given order if the tour is worse
+        int[] given = identity(k);
+        if (!(total <= total(cost, given))) {
+            order = given;
+            total = total(cost, given);
+        }
+        int[] candidate = new int[k];
+        boolean improved = true;
+        while (improved && System.nanoTime() < deadline) {
+            improved = false;
+            // 2-opt, reverse order[i..j]. Costs may be asymmetric so the whole candidate is priced
+            for (int i = 0; i < k - 1 && !improved; i++) {
+                for (int j = i + 1; j < k && !improved && System.nanoTime() < deadline; j++) {
+                    System.arraycopy(order, 0, candidate, 0, k);
+                    for (int a = i, b = j; a < b; a++, b--) {
+                        int swap = candidate[a];
+                        candidate[a] = candidate[b];
+                        candidate[b] = swap;
+                    }
+                    double d = total(cost, candidate);
+                    if (d < total) {
+                        total = d;
+                        System.arraycopy(candidate, 0, order, 0, k);
+                        improved = true;
+                    }
+                }
+            }
+            // Relocation, move order[i] to position j
+            for (int i = 0; i < k && !improved; i++) {
+                for (int j = 0; j < k && !improved && System.nanoTime() < deadline; j++) {
+                    if (i == j)
+                        continue;
+                    move(order, candidate, i, j);
+                    double d = total(cost, candidate);
+                    if (d < total) {
+                        total = d;
+                        System.arraycopy(candidate, 0, order, 0, k);
+                        improved = true;
+                    }
+                }
+            }
+        }
+        return order;
+    }
+
+    private static int[] identity(int k) {
+        int[] order = new int[k];
+        for (int i = 0; i < k; i++)
+            order[i] = i + 1;
+        return order;
+    }
+
+    /**
+     * Copy order into candidate with the element at from moved to position to
+     */
+    private static void move(int[] order, int[] candidate, int from, int to) {
+        int stop = order[from];
+        for (int i = 0, c = 0; i < order.length; i++) {
+            if (i == from)
+                continue;
+            if (c == to)
+                candidate[c++] = stop;
+            candidate[c++] = order[i];
+        }
+        if (to == order.length - 1)
+            candidate[to] = stop;
+    }
+}
@@ -2,7 +2,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
 
-public class TST<Value> {
+public class TST<Value> implements PrefixIndex<Value> {
     public Node<Value> root;
 
     public static class Node<Value> {
@@ -60,6 +60,7 @@ public class TST<Value> {
      * @param prefix: prefix of key
      * @return list of values
      */
+    @Override
     public List<Value> valuesWithPrefix(String prefix) {
         // If prefix is smaller than 2 characters, don't perform search
         if (prefix.length()<2)
@@ -0,0 +1,72 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Decoded tile images kept in memory up to a byte budget, so rastering does not read and decode
+ * the same PNG files for every request.
+ */
+public class TileCache {
+    private final String imgRoot;
+    private final BoundedCache<String, BufferedImage> images;
+
+    /**
+     * @param imgRoot: directory of the tile images
+     * @param budget: maximum bytes of decoded pixels to keep
+     */
+    public TileCache(String imgRoot, long budget) {
+        this.imgRoot = imgRoot;
+        this.images = new BoundedCache<>(budget, TileCache::bytes);
+    }
+
+    /**
+     * Returns the decoded image of a tile
+     * @param imgPath: path of the tile image
+     * @return (BufferedImage) image, null if it cannot be read
+     */
+    public BufferedImage get(String imgPath) {
+        return images.get(imgPath, TileCache::read);
+    }
+
+    /**
+     * Load every tile from depth 1 down to the given depth into the cache
+     * @param maxDepth: deepest level to load
+     */
+    public void warmUp(int maxDepth) {
+        warmUp("", maxDepth);
+    }
+
+    private void warmUp(String name, int depthLeft) {
+        if (depthLeft == 0)
+            return;
+        for (char quadrant = '1'; quadrant <= '4'; quadrant++) {
+            String child = name + quadrant;
+            get(imgRoot + child + ".png");
+            warmUp(child, depthLeft - 1);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        return images.stats();
+    }
+
+    private static BufferedImage read(String imgPath) {
+        try {
+            return ImageIO.read(new File(imgPath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Size of the pixel data of an image
+     */
+    private static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,65 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Assembles the tiles of a render grid into one image. Tiles are fetched, decoded and copied in
+ * parallel on the raster workers, each into its own cell of the pixel array, so no Graphics object
+ * is shared between threads.
+ */
+public class TileCompositor {
+    // Cell each worker thread draws a tile into before copying it
+    private static final ThreadLocal<BufferedImage> SCRATCH = new ThreadLocal<>();
+
+    /**
+     * Draw the tiles of a grid next to each other, the same as drawing them one by one onto a black image
+     * @param renderGrid: tile images in rows from north to south
+     * @param tiles: decoded image of a tile path, null for a missing tile which is left black
+     * @param tileSize: width and height of a tile cell in pixels
+     * @return (BufferedImage) image of TYPE_INT_RGB
+     */
+    public static BufferedImage composite(String[][] renderGrid, Function<String, BufferedImage> tiles, int tileSize) {
+        return composite(renderGrid, tiles, tileSize, RasterWorkers.THREADS);
+    }
+
+    /**
+     * Draw the tiles of a grid next to each other on up to the given number of threads
+     * @param renderGrid: tile images in rows from north to south
+     * @param tiles: decoded image of a tile path, null for a missing tile which is left black
+     * @param tileSize: width and height of a tile cell in pixels
+     * @param parallelism: largest number of threads, 1 draws every tile on the calling thread
+     * @return (BufferedImage) image of TYPE_INT_RGB
+     */
+    public static BufferedImage composite(String[][] renderGrid, Function<String, BufferedImage> tiles, int tileSize,
+                                          int parallelism) {
+        int rows = renderGrid.length;
+        int columns = renderGrid[0].length;
+        BufferedImage img = new BufferedImage(columns * tileSize, rows * tileSize, BufferedImage.TYPE_INT_RGB);
+        int width = img.getWidth();
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        RasterWorkers.forEach(rows * columns, parallelism, i -> {
+            int r = i / columns, c = i % columns;
+            BufferedImage tile = tiles.apply(renderGrid[r][c]);
+            if (tile == null)
+                return;
+            // Draw into a private tile-sized image, which converts any color model with the
+            // usual loops, then copy its rows into the cell
+            BufferedImage cell = SCRATCH.get();
+            if (cell == null || cell.getWidth() != tileSize) {
+                cell = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+                SCRATCH.set(cell);
+            }
+            int[] cellPixels = ((DataBufferInt) cell.getRaster().getDataBuffer()).getData();
+            Arrays.fill(cellPixels, 0);
+            Graphics graphic = cell.getGraphics();
+            graphic.drawImage(tile, 0, 0, null);
+            graphic.dispose();
+            int offset = r * tileSize * width + c * tileSize;
+            for (int y = 0; y < tileSize; y++)
+                System.arraycopy(cellPixels, y * tileSize, pixels, offset + y * width, tileSize);
+        });
+        return img;
+    }
+}
@@ -329,7 +329,7 @@
 
     
     $('#tags').autocomplete({
-          source: search,
+          source: search + '?limit=10',
           minLength: 2,
           select: function (event, ui) {
               $.get({
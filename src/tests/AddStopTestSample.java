@@ -39,7 +39,8 @@ public class AddStopTestSample {
         try {
             StopTest[] entries = mapper.readValue(new File("stop_sample.json"), StopTest[].class);
             for (StopTest test : entries) {
-                List<Long> testRoute = Router.shortestPath(graph, test.route.input.stlon, test.route.input.stlat, test.route.input.destlon, test.route.input.destlat);
+                RouteSession session = new RouteSession();
+                List<Long> testRoute = Router.shortestPath(graph, session, test.route.input.stlon, test.route.input.stlat, test.route.input.destlon, test.route.input.destlat, Router.DEFAULT_MODE);
 
                 if (!testRoute.equals(test.route.output)) {
                     System.out.println("Expected Route: '" + gson.toJson(test.route.output) + "'\nGot Route: '" + gson.toJson(test) + "'");
@@ -48,14 +49,14 @@ public class AddStopTestSample {
                 }
 
                 for (Stop s : test.stops) {
-                    List<Long> test_val = Router.addStop(graph, s.input.lat, s.input.lon);
+                    List<Long> test_val = Router.addStop(graph, session, s.input.lat, s.input.lon);
                     if (!test_val.equals(s.output)) {
                         System.out.println("Expected: '" + gson.toJson(s.output) + "'\nGot: '" + gson.toJson(test_val) + "'");
                         System.out.println("For: '" + gson.toJson(test) + "'\n");
                         TestUtils.fail();
                     }
                 }
-                Router.clearRoute();
+                Router.clearRoute(session);
             }
             TestUtils.pass();
         } catch (IOException e) {
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class BatchRoutingTestSample {
+    // A batch still waiting for its routes after this long has lost a permit
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) {
+        ExecutorService caller = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "batch-caller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            System.setProperty("graph.snapshot.path", "");
+            GraphDB g = new GraphDB(TestUtils.sampleOsm(25, 17));
+            CompactGraph graph = g.compactGraph;
+            Random random = new Random(9);
+            // Several times more pairs than may be in flight, every seventh one null
+            List<double[]> pairs = new ArrayList<>();
+            List<List<Long>> expected = new ArrayList<>();
+            for (int i = 0; i < 3 * Router.BATCH_IN_FLIGHT + 5; i++) {
+                if (i % 7 == 3) {
+                    pairs.add(null);
+                    expected.add(null);
+                    continue;
+                }
+                int start = random.nextInt(graph.size()), end = random.nextInt(graph.size());
+                double[] pair = {graph.lon(start), graph.lat(start), graph.lon(end), graph.lat(end)};
+                pairs.add(pair);
+                expected.add(Router.shortestPath(g, pair[0], pair[1], pair[2], pair[3], Router.Mode.DIJKSTRA));
+            }
+
+            // Every pair delivered once with the route of its pair
+            Batch all = run(caller, g, pairs.iterator(), -1);
+            check(all.failure == null, "Batch failed with " + all.failure);
+            check(all.deliveredOnce(pairs.size()), "Positions not delivered exactly once: " + all.deliveries);
+            all.checkRoutes(expected);
+
+            // A sink that throws is not called again and its exception is rethrown once the batch drains
+            int throwing = Router.BATCH_IN_FLIGHT + 2;
+            Batch sinkFailed = run(caller, g, pairs.iterator(), throwing);
+            check(sinkFailed.failure != null && "sink".equals(sinkFailed.failure.getMessage()),
+                    "Sink failure rethrown as " + sinkFailed.failure);
+            check(sinkFailed.deliveredOnce(-1) && sinkFailed.deliveries.get(sinkFailed.deliveries.size() - 1) == throwing,
+                    "Sink called again after it threw: " + sinkFailed.deliveries);
+            sinkFailed.checkRoutes(expected);
+
+            // An iterator failing midway is rethrown after every pair read before it is delivered
+            int readable = 2 * Router.BATCH_IN_FLIGHT + 1;
+            Batch readFailed = run(caller, g, failingAfter(pairs, readable), -1);
+            check(readFailed.failure != null && "pairs".equals(readFailed.failure.getMessage()),
+                    "Iterator failure rethrown as " + readFailed.failure);
+            check(readFailed.deliveredOnce(readable), "Pairs read before the failure not delivered exactly once: "
+                    + readFailed.deliveries);
+            readFailed.checkRoutes(expected);
+
+            // The batch threads are free again and later batches are unaffected
+            Batch again = run(caller, g, pairs.iterator(), -1);
+            check(again.failure == null && again.deliveredOnce(pairs.size()), "Batch after failures is incomplete");
+            again.checkRoutes(expected);
+            TestUtils.pass();
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        } catch (TimeoutException e) {
+            System.out.println("Batch did not return, a permit was not released");
+            TestUtils.fail();
+        }
+    }
+
+    /**
+     * Deliveries and failure of one call of Router.shortestPaths
+     */
+    private static final class Batch {
+        // Positions in the order the sink received them
+        final List<Integer> deliveries = new ArrayList<>();
+        final Map<Integer, List<Long>> routes = new HashMap<>();
+        RuntimeException failure;
+
+        /**
+         * Whether no position was delivered twice, and if count is not -1 whether exactly [0, count) were
+         */
+        boolean deliveredOnce(int count) {
+            if (routes.size() != deliveries.size())
+                return false;
+            if (count < 0)
+                return true;
+            for (int i = 0; i < count; i++)
+                if (!routes.containsKey(i))
+                    return false;
+            return routes.size() == count;
+        }
+
+        void checkRoutes(List<List<Long>> expected) {
+            for (Map.Entry<Integer, List<Long>> entry : routes.entrySet())
+                check(Objects.equals(entry.getValue(), expected.get(entry.getKey())), "Route of pair "
+                        + entry.getKey() + " is " + entry.getValue() + ", expected " + expected.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Run a batch on the caller thread, with a sink that throws at the given position, -1 for none
+     */
+    private static Batch run(ExecutorService caller, GraphDB g, Iterator<double[]> pairs, int throwing)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Future<Batch> future = caller.submit(() -> {
+            Batch batch = new Batch();
+            Thread callingThread = Thread.currentThread();
+            try {
+                Router.shortestPaths(g, pairs, Router.Mode.DIJKSTRA, (position, route) -> {
+                    check(Thread.currentThread() == callingThread, "Sink called on " + Thread.currentThread().getName());
+                    batch.deliveries.add(position);
+                    batch.routes.put(position, route);
+                    if (position == throwing)
+                        throw new IllegalStateException("sink");
+                });
+            } catch (RuntimeException e) {
+                batch.failure = e;
+            }
+            return batch;
+        });
+        return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Iterator over the first count pairs that throws when asked for the next one
+     */
+    private static Iterator<double[]> failingAfter(List<double[]> pairs, int count) {
+        return new Iterator<double[]>() {
+            int read;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public double[] next() {
+                if (read == count)
+                    throw new IllegalStateException("pairs");
+                return pairs.get(read++);
+            }
+        };
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println(message);
+            TestUtils.fail();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+public class BidirectionalSearchTestSample {
+
+    public static void main(String[] args) {
+        try {
+            System.setProperty("graph.snapshot.path", "");
+            GraphDB g = new GraphDB(TestUtils.sampleOsm(30, 17));
+            CompactGraph graph = g.compactGraph;
+            Random random = new Random(9);
+            for (int q = 0; q < 500; q++) {
+                int start = random.nextInt(graph.size());
+                // Some queries from a vertex to itself or to a neighbor
+                int end = q % 25 == 0 ? start : q % 25 == 1 && graph.lastEdge(start) > graph.firstEdge(start)
+                        ? graph.target(graph.firstEdge(start)) : random.nextInt(graph.size());
+                List<Long> correct = Router.shortestPath(g, graph.lon(start), graph.lat(start),
+                        graph.lon(end), graph.lat(end), Router.Mode.DIJKSTRA);
+                for (Router.Mode mode : new Router.Mode[]{Router.Mode.BIDIRECTIONAL, Router.Mode.ASTAR}) {
+                    List<Long> test = Router.shortestPath(g, graph.lon(start), graph.lat(start),
+                            graph.lon(end), graph.lat(end), mode);
+                    if (!TestUtils.sameRouteCost(graph, correct, test)) {
+                        System.out.println(mode + " from " + start + " to " + end + "\nExpected: '" + correct
+                                + "'\nGot: '" + test + "'");
+                        TestUtils.fail();
+                    }
+                }
+            }
+            TestUtils.pass();
+        } catch (IOException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        }
+    }
+}
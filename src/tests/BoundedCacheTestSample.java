@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BoundedCacheTestSample {
+    public static void main(String[] args) throws InterruptedException {
+        // A single segment evicts in exact least recently used order
+        BoundedCache<Integer, long[]> lru = new BoundedCache<>(100, v -> v[0], 1);
+        for (int i = 0; i < 10; i++)
+            lru.put(i, new long[]{10});
+        lru.get(0);
+        lru.put(10, new long[]{25});
+        if ((long) lru.stats().get("weight") > 100) {
+            System.out.println("Weight over budget: " + lru.stats());
+            TestUtils.fail();
+        }
+        // 0 was used last, so 1, 2 and 3 are evicted first
+        for (int i = 1; i <= 3; i++) {
+            if (lru.containsKey(i)) {
+                System.out.println("Expected " + i + " to be evicted");
+                TestUtils.fail();
+            }
+        }
+        for (int i : new int[]{0, 4, 9, 10}) {
+            if (!lru.containsKey(i)) {
+                System.out.println("Expected " + i + " to be cached");
+                TestUtils.fail();
+            }
+        }
+        // Values heavier than the budget are not cached
+        lru.put(11, new long[]{101});
+        if (lru.containsKey(11)) {
+            System.out.println("Cached a value over budget");
+            TestUtils.fail();
+        }
+
+        // The budget holds across segments, also with concurrent writers
+        BoundedCache<Integer, long[]> segmented = new BoundedCache<>(1000, v -> v[0], 8);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t * 10000;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 5000; i++)
+                    segmented.put(offset + i, new long[]{1 + i % 40});
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        long weight = (long) segmented.stats().get("weight");
+        if (weight > 1000 || weight <= 0) {
+            System.out.println("Weight out of bounds: " + segmented.stats());
+            TestUtils.fail();
+        }
+
+        // Concurrent misses on one key run the loader once
+        BoundedCache<String, long[]> coalescing = new BoundedCache<>(1000, v -> v[0]);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        threads.clear();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                coalescing.get("key", key -> {
+                    loads.incrementAndGet();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new long[]{1};
+                });
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        if (loads.get() != 1) {
+            System.out.println("Expected one load, got " + loads.get());
+            TestUtils.fail();
+        }
+        TestUtils.pass();
+    }
+}
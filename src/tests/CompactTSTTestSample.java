@@ -0,0 +1,164 @@
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+public class CompactTSTTestSample {
+    static class IO {
+        @JsonProperty("input")
+        String input;
+
+        @JsonProperty("output")
+        List<Map<String, Object>> output;
+    }
+
+    public static void main(String[] args) {
+        ObjectMapper mapper = new ObjectMapper();
+        try {
+            String[] names = mapper.readValue(new File("tst_input_sample.json"), String[].class);
+            TST<Vertex> tst = new TST<>();
+
+            for (int i = 0; i < names.length; i++) {
+                tst.put(GraphDB.normalizeString(names[i]), new Vertex(1,1, (long) i));
+            }
+            CompactTST<Vertex> compact = CompactTST.freeze(tst);
+            // Weights with many ties, ranked queries must keep the prefix order between them
+            CompactTST<Vertex> weighted = CompactTST.freeze(tst, v -> v.getId() % 7);
+
+            // Every prefix of every name, and a few that match nothing
+            for (String name : names) {
+                String key = GraphDB.normalizeString(name);
+                for (int end = 0; end <= key.length(); end++) {
+                    for (String prefix : new String[]{key.substring(0, end), key.substring(0, end) + "~"}) {
+                        List<Vertex> correct = tst.valuesWithPrefix(prefix);
+                        List<Vertex> test = compact.valuesWithPrefix(prefix);
+                        if (!correct.equals(test)) {
+                            System.out.println("Prefix: '" + prefix + "'\nExpected: '" + correct + "'\nGot: '" + test + "'");
+                            TestUtils.fail();
+                        }
+                        List<Vertex> ranked = new ArrayList<>(correct);
+                        ranked.sort(Comparator.comparingLong((Vertex v) -> v.getId() % 7).reversed());
+                        for (int limit : new int[]{0, 1, 5, 1000}) {
+                            List<Vertex> top = ranked.subList(0, Math.min(limit, ranked.size()));
+                            if (!top.equals(weighted.valuesWithPrefix(prefix, limit))
+                                    || !correct.subList(0, top.size()).equals(compact.valuesWithPrefix(prefix, limit))) {
+                                System.out.println("Prefix: '" + prefix + "' limit " + limit + "\nExpected: '" + top + "'");
+                                TestUtils.fail();
+                            }
+                        }
+                    }
+                }
+            }
+
+            // Fuzzy prefixes over the place names of the prefix sample, every prefix with a typo
+            IO[] samples = mapper.readValue(new File("prefix_sample.json"), IO[].class);
+            TST<Vertex> places = new TST<>();
+            long id = 0;
+            for (IO sample : samples)
+                for (Map<String, Object> place : sample.output)
+                    places.put(GraphDB.normalizeString((String) place.get("name")), new Vertex(1, 1, id++));
+            CompactTST<Vertex> compactPlaces = CompactTST.freeze(places);
+            List<String> keys = new ArrayList<>();
+            List<Vertex> preOrder = new ArrayList<>();
+            keys(places.root, "", keys, preOrder);
+            for (String key : keys) {
+                for (int end = 2; end <= key.length(); end++) {
+                    String prefix = key.substring(0, end);
+                    int typo = end / 2;
+                    String[] queries = {prefix, prefix.substring(0, typo) + "x" + prefix.substring(typo + 1),
+                            prefix.substring(0, typo) + prefix.substring(typo + 1) + "q",
+                            prefix.substring(0, typo) + "z" + prefix.substring(typo)};
+                    for (String query : queries) {
+                        for (int maxDistance = 0; maxDistance <= 2; maxDistance++) {
+                            List<Vertex> correct = new ArrayList<>();
+                            List<Integer> distances = new ArrayList<>();
+                            for (int i = 0; i < keys.size(); i++) {
+                                int distance = prefixDistance(query, keys.get(i));
+                                if (distance <= maxDistance) {
+                                    correct.add(preOrder.get(i));
+                                    distances.add(distance);
+                                }
+                            }
+                            List<Vertex> sorted = new ArrayList<>(correct);
+                            sorted.sort(Comparator.comparingInt(v -> distances.get(correct.indexOf(v))));
+                            List<Vertex> test = compactPlaces.valuesWithFuzzyPrefix(query, maxDistance);
+                            if (query.length() < 2)
+                                sorted.clear();
+                            if (!sorted.equals(test)) {
+                                System.out.println("Query: '" + query + "' distance " + maxDistance
+                                        + "\nExpected: '" + sorted + "'\nGot: '" + test + "'");
+                                TestUtils.fail();
+                            }
+                        }
+                    }
+                }
+            }
+
+            // Typing each key one character at a time through the prefix cache, with a budget
+            // small enough to evict
+            PrefixSearchCache<Vertex> cache = new PrefixSearchCache<>(compactPlaces, 2048);
+            for (String key : keys) {
+                for (int end = 0; end <= key.length() + 1; end++) {
+                    String prefix = end <= key.length() ? key.substring(0, end) : key + "q";
+                    if (!compactPlaces.valuesWithPrefix(prefix).equals(cache.valuesWithPrefix(prefix, Integer.MAX_VALUE))) {
+                        System.out.println("Cached prefix: '" + prefix + "'");
+                        TestUtils.fail();
+                    }
+                    // Limits between the cached ones are cut from the next larger result
+                    for (int limit : new int[]{0, 3, 5, 7, 150}) {
+                        if (!compactPlaces.valuesWithPrefix(prefix, limit).equals(cache.valuesWithPrefix(prefix, limit))) {
+                            System.out.println("Cached prefix: '" + prefix + "' limit " + limit);
+                            TestUtils.fail();
+                        }
+                    }
+                }
+            }
+
+            TestUtils.pass();
+        } catch (IOException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        }
+
+    }
+
+    /**
+     * Collect the key and value of every node with a value in the order valuesWithPrefix visits them
+     */
+    public static void keys(TST.Node<Vertex> node, String path, List<String> keys, List<Vertex> values) {
+        if (node == null)
+            return;
+        if (node.val != null) {
+            keys.add(path + node.c);
+            values.add(node.val);
+        }
+        keys(node.left, path, keys, values);
+        keys(node.mid, path + node.c, keys, values);
+        keys(node.right, path, keys, values);
+    }
+
+    /**
+     * Smallest edit distance between the query and a prefix of the key
+     */
+    public static int prefixDistance(String query, String key) {
+        int[] row = new int[query.length() + 1];
+        for (int j = 0; j < row.length; j++)
+            row[j] = j;
+        int best = row[query.length()];
+        for (int i = 0; i < key.length(); i++) {
+            int[] next = new int[row.length];
+            next[0] = i + 1;
+            for (int j = 1; j < row.length; j++)
+                next[j] = Math.min(row[j - 1] + (query.charAt(j - 1) == key.charAt(i) ? 0 : 1),
+                        Math.min(row[j], next[j - 1]) + 1);
+            row = next;
+            best = Math.min(best, row[query.length()]);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+public class ContractionHierarchyTestSample {
+
+    public static void main(String[] args) {
+        try {
+            System.setProperty("graph.snapshot.path", "");
+            GraphDB g = new GraphDB(TestUtils.sampleOsm(30, 11));
+            CompactGraph graph = g.compactGraph;
+            Random random = new Random(5);
+            for (int q = 0; q < 300; q++) {
+                int start = random.nextInt(graph.size()), end = random.nextInt(graph.size());
+                List<Long> correct = Router.shortestPath(g, graph.lon(start), graph.lat(start),
+                        graph.lon(end), graph.lat(end), Router.Mode.DIJKSTRA);
+                List<Long> test = Router.shortestPath(g, graph.lon(start), graph.lat(start),
+                        graph.lon(end), graph.lat(end), Router.Mode.CH);
+                if (!TestUtils.sameRouteCost(graph, correct, test)) {
+                    System.out.println("From " + start + " to " + end + "\nExpected: '" + correct + "'\nGot: '" + test + "'");
+                    TestUtils.fail();
+                }
+            }
+
+            // Bucket queries against one Dijkstra per source
+            int[] sources = new int[40], targets = new int[25];
+            for (int i = 0; i < sources.length; i++)
+                sources[i] = random.nextInt(graph.size());
+            for (int j = 0; j < targets.length; j++)
+                targets[j] = j == 0 ? -1 : random.nextInt(graph.size());
+            double[][] correct = Router.distanceMatrix(g, sources, targets, Router.Mode.DIJKSTRA);
+            double[][] test = Router.distanceMatrix(g, sources, targets, Router.Mode.CH);
+            for (int i = 0; i < sources.length; i++) {
+                for (int j = 0; j < targets.length; j++) {
+                    if (correct[i][j] == test[i][j])
+                        continue;
+                    if (Double.isInfinite(correct[i][j]) || Math.abs(correct[i][j] - test[i][j]) > 1e-9 * Math.max(1.0, correct[i][j])) {
+                        System.out.println("Cost from " + sources[i] + " to " + targets[j] + "\nExpected: '" + correct[i][j]
+                                + "'\nGot: '" + test[i][j] + "'");
+                        TestUtils.fail();
+                    }
+                }
+            }
+            TestUtils.pass();
+        } catch (IOException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class GraphSnapshotTestSample {
+
+    public static void main(String[] args) {
+        try {
+            String path = TestUtils.sampleOsm(30, 41);
+            File snapshotFile = File.createTempFile("sample", ".osm.snapshot");
+            snapshotFile.deleteOnExit();
+            snapshotFile.delete();
+            System.setProperty("graph.snapshot.path", "");
+            GraphDB parsed = new GraphDB(path);
+            System.setProperty("graph.snapshot.path", snapshotFile.getPath());
+
+            // Round trip, the first graph writes the snapshot and the second one maps it
+            GraphDB written = new GraphDB(path);
+            byte[] sourceHash = GraphSnapshot.hash(new File(path));
+            GraphSnapshot snapshot = GraphSnapshot.load(snapshotFile, sourceHash);
+            if (snapshot == null || snapshot.graph.fingerprint() != parsed.compactGraph.fingerprint()) {
+                System.out.println("Snapshot does not load back the parsed graph");
+                TestUtils.fail();
+            }
+            GraphDB loaded = new GraphDB(path);
+            for (GraphDB g : new GraphDB[]{written, loaded}) {
+                if (g.compactGraph.fingerprint() != parsed.compactGraph.fingerprint()
+                        || !names(g, "t").equals(names(parsed, "t"))
+                        || !names(g, "ca").equals(names(parsed, "ca"))) {
+                    System.out.println("Graph built through the snapshot differs from the parsed one");
+                    TestUtils.fail();
+                }
+            }
+
+            // A snapshot of another source is not used
+            byte[] otherHash = sourceHash.clone();
+            otherHash[0] ^= 1;
+            if (GraphSnapshot.load(snapshotFile, otherHash) != null) {
+                System.out.println("Snapshot loaded for another source");
+                TestUtils.fail();
+            }
+
+            // Truncated and corrupt snapshots are parsed again instead of failing the load
+            byte[] full = Files.readAllBytes(snapshotFile.toPath());
+            int header = 12 + sourceHash.length;
+            for (int length : new int[]{header + 20, header + 200, full.length / 2, full.length - 1}) {
+                try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+                    file.setLength(length);
+                }
+                checkReparsed(snapshotFile, sourceHash, path, parsed, "truncated to " + length + " bytes");
+                Files.write(snapshotFile.toPath(), full);
+            }
+            byte[] corrupt = full.clone();
+            // Vertex count of the graph, right after the header
+            Arrays.fill(corrupt, header, header + 4, (byte) 0xff);
+            Files.write(snapshotFile.toPath(), corrupt);
+            checkReparsed(snapshotFile, sourceHash, path, parsed, "with a negative vertex count");
+            TestUtils.pass();
+        } catch (IOException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        }
+    }
+
+    private static List<String> names(GraphDB g, String prefix) {
+        List<String> names = new ArrayList<>();
+        for (Vertex vertex : g.searchNames(prefix, Integer.MAX_VALUE))
+            names.add(vertex.getId() + " " + vertex.getName());
+        return names;
+    }
+
+    /**
+     * Check that a damaged snapshot is not loaded and that a graph is still built from the source
+     */
+    private static void checkReparsed(File snapshotFile, byte[] sourceHash, String path, GraphDB parsed,
+                                      String damage) throws IOException {
+        if (GraphSnapshot.load(snapshotFile, sourceHash) != null) {
+            System.out.println("Snapshot " + damage + " was loaded");
+            TestUtils.fail();
+        }
+        try {
+            if (new GraphDB(path).compactGraph.fingerprint() != parsed.compactGraph.fingerprint()) {
+                System.out.println("Graph with a snapshot " + damage + " differs from the parsed one");
+                TestUtils.fail();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            System.out.println("Graph with a snapshot " + damage + " failed to load");
+            TestUtils.fail();
+        }
+    }
+}
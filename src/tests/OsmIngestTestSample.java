@@ -0,0 +1,89 @@
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+public class OsmIngestTestSample {
+    // Markup the byte-level reader has to handle like an XML parser
+    private static final String TRICKY_OSM = String.join("\n",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+            "<!DOCTYPE osm [ <!ENTITY foo \"bar\"> ]>",
+            "<osm version=\"0.6\">",
+            "  <!-- a comment with <node id=\"9\" lat=\"1\" lon=\"1\"/> inside -->",
+            "  <node id='1' lat='37.85' lon='-122.25'>",
+            "    <tag k='name' v='Caf&#233; &amp; Bar &lt;Best&gt; &#x263A;'/>",
+            "  </node>",
+            "  <node id=\"2\" lat=\"3.785e1\" lon=\"-122.2500000000000000001\"/>",
+            "  <node",
+            "     id=\"3\"",
+            "     lat=\"37.86\"    lon=\"-122.24\" >",
+            "    <tag k=\"amenity\" v=\"x > y\"/>",
+            "    <tag k=\"name\" v=\"\u00dcn\u00efcode",
+            "line\"/>",
+            "  </node>",
+            "  <node id=\"4\" lat=\"+37.87\" lon=\"-122.23\"/>",
+            "  <node id=\"5\" lat=\"37.88000000000000012\" lon=\"-122.22\"/>",
+            "  <node id=\"6\" lat=\"-0.0\" lon=\"0\"/>",
+            "  <node id=\"7\" lat=\"37.9\" lon=\"-122.21\"><tag k=\"name\" v=\"Lonely Place\"/></node>",
+            "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><tag k=\"highway\" v=\"residential\"/>"
+                    + "<tag k=\"name\" v=\"A &amp; B St\"/></way>",
+            "  <way id=\"11\"><nd ref=\"3\"/><nd ref=\"4\"/><tag k=\"highway\" v=\"footway\"/></way>",
+            "  <way id=\"12\"><nd ref=\"4\"/><nd ref=\"5\"/><nd ref=\"6\"/><tag k=\"highway\" v=\"primary\"/>"
+                    + "<tag k=\"oneway\" v=\"yes\"/><![CDATA[ <nd ref=\"7\"/> ]]></way>",
+            "  <way id=\"13\"/>",
+            "</osm>", "");
+
+    public static void main(String[] args) {
+        try {
+            System.setProperty("graph.snapshot.path", "");
+            File tricky = File.createTempFile("tricky", ".osm");
+            tricky.deleteOnExit();
+            try (PrintWriter out = new PrintWriter(tricky, StandardCharsets.UTF_8.name())) {
+                out.print(TRICKY_OSM);
+            }
+            for (String path : new String[]{TestUtils.sampleOsm(40, 23), tricky.getPath()}) {
+                GraphDB correct = new GraphDB(path, GraphDB.Ingest.SAX);
+                for (GraphDB.Ingest ingest : new GraphDB.Ingest[]{GraphDB.Ingest.STREAM, GraphDB.Ingest.TWO_PASS}) {
+                    String difference = difference(correct, new GraphDB(path, ingest));
+                    if (difference != null) {
+                        System.out.println(ingest + " reading of " + path + " differs from SAX in " + difference);
+                        TestUtils.fail();
+                    }
+                }
+            }
+            TestUtils.pass();
+        } catch (IOException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        }
+    }
+
+    /**
+     * Returns what differs between the graphs and name indexes of two readings of a file, null if nothing
+     */
+    private static String difference(GraphDB correct, GraphDB test) {
+        CompactGraph a = correct.compactGraph, b = test.compactGraph;
+        if (a.size() != b.size() || a.edgeCount() != b.edgeCount() || a.fingerprint() != b.fingerprint())
+            return "size " + a.size() + " " + a.edgeCount() + " vs " + b.size() + " " + b.edgeCount();
+        for (int v = 0; v < a.size(); v++)
+            if (a.id(v) != b.id(v) || a.lat(v) != b.lat(v) || a.lon(v) != b.lon(v))
+                return "vertex " + v;
+        for (int e = 0; e < a.edgeCount(); e++) {
+            String name = a.name(e);
+            if (name == null ? b.name(e) != null : !name.equals(b.name(e)))
+                return "name of edge " + e;
+        }
+        Gson gson = new Gson();
+        String characters = "abcdefghijklmnopqrstuvwxyz0123456789\u00e9\u00fc";
+        for (char first : characters.toCharArray()) {
+            for (char second : characters.toCharArray()) {
+                String prefix = "" + first + second;
+                if (!gson.toJson(correct.tst.valuesWithPrefix(prefix)).equals(gson.toJson(test.tst.valuesWithPrefix(prefix))))
+                    return "places starting with '" + prefix + "'";
+            }
+        }
+        return null;
+    }
+}
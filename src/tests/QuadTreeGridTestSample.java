@@ -0,0 +1,61 @@
+import com.google.gson.Gson;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class QuadTreeGridTestSample {
+
+    public static void main(String[] args) {
+        Gson gson = new Gson();
+        Random random = new Random(7);
+        double width = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON, height = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        for (int maxDepth : new int[]{QuadTree.DEFAULT_MAX_DEPTH, 12}) {
+            QuadTree tree = new QuadTree("img/", maxDepth);
+            for (int q = 0; q < 10000; q++) {
+                // Boxes of every scale, partly or wholly outside the root
+                double centerLon = MapServer.ROOT_ULLON + (random.nextDouble() * 1.4 - 0.2) * width;
+                double centerLat = MapServer.ROOT_LRLAT + (random.nextDouble() * 1.4 - 0.2) * height;
+                double w = width * Math.pow(2, -random.nextInt(maxDepth + 4)) * random.nextDouble();
+                // Below the default depth a tall, narrow box would reach thousands of tiles, keep them wide
+                double h = maxDepth == QuadTree.DEFAULT_MAX_DEPTH
+                        ? height * Math.pow(2, -random.nextInt(maxDepth + 4)) * random.nextDouble()
+                        : w * (0.3 + random.nextDouble()) * height / width;
+                // An inverted box overlaps every tile, which the tree search visits down to the deepest level
+                boolean invert = maxDepth == QuadTree.DEFAULT_MAX_DEPTH && random.nextInt(5) == 0;
+                if (invert && random.nextBoolean())
+                    w = -w;
+                else if (invert)
+                    h = -h;
+                Map<String, Double> params = new HashMap<>();
+                params.put("ullon", centerLon - w / 2);
+                params.put("lrlon", centerLon + w / 2);
+                params.put("ullat", centerLat + h / 2);
+                params.put("lrlat", centerLat - h / 2);
+                // Boxes moved so an edge lies exactly on a tile boundary
+                if (random.nextInt(4) == 0) {
+                    int depth = random.nextInt(maxDepth + 1);
+                    double boundary = MapServer.ROOT_ULLON + width * random.nextInt(1 << depth) / (1 << depth);
+                    params.put("lrlon", params.get("lrlon") + boundary - params.get("ullon"));
+                    params.put("ullon", boundary);
+                }
+                if (random.nextInt(4) == 0) {
+                    int depth = random.nextInt(maxDepth + 1);
+                    double boundary = MapServer.ROOT_LRLAT + height * random.nextInt(1 << depth) / (1 << depth);
+                    params.put("ullat", params.get("ullat") + boundary - params.get("lrlat"));
+                    params.put("lrlat", boundary);
+                }
+                params.put("w", random.nextInt(20) == 0 ? 0.0 : 100.0 + random.nextInt(2000));
+                params.put("h", 800.0);
+                String correct = gson.toJson(tree.searchTree(params));
+                String test = gson.toJson(tree.search(params));
+                if (!correct.equals(test)) {
+                    System.out.println("Expected: '" + correct + "'\nGot: '" + test + "'");
+                    System.out.println("For: '" + gson.toJson(params) + "' at depth " + maxDepth + "\n");
+                    TestUtils.fail();
+                }
+            }
+        }
+        TestUtils.pass();
+    }
+}
@@ -0,0 +1,95 @@
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class RasterEncodeTestSample {
+    private static final int TILE_SIZE = 256;
+
+    public static void main(String[] args) {
+        try {
+            // Tiles of the image types ImageIO decodes PNG files to, one of them missing
+            Random random = new Random(7);
+            int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+                    BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_INDEXED};
+            Map<String, BufferedImage> tiles = new HashMap<>();
+            String[][] grid = new String[3][5];
+            for (int r = 0; r < grid.length; r++) {
+                for (int c = 0; c < grid[r].length; c++) {
+                    grid[r][c] = "tile" + r + "_" + c;
+                    if (r == 1 && c == 2)
+                        continue;
+                    tiles.put(grid[r][c], tile(types[(r * 5 + c) % types.length], random));
+                }
+            }
+
+            BufferedImage sequential = TileCompositor.composite(grid, tiles::get, TILE_SIZE, 1);
+            BufferedImage parallel = TileCompositor.composite(grid, tiles::get, TILE_SIZE, 4);
+            // Drawing the tiles one by one onto a black image, as rendering did before compositing
+            BufferedImage drawn = new BufferedImage(5 * TILE_SIZE, 3 * TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics graphic = drawn.getGraphics();
+            for (int r = 0; r < grid.length; r++)
+                for (int c = 0; c < grid[r].length; c++)
+                    if (tiles.containsKey(grid[r][c]))
+                        graphic.drawImage(tiles.get(grid[r][c]), c * TILE_SIZE, r * TILE_SIZE, null);
+            graphic.dispose();
+            if (!Arrays.equals(pixels(sequential), pixels(parallel)) || !Arrays.equals(pixels(drawn), pixels(parallel))) {
+                System.out.println("Parallel composite differs from drawing the tiles in order");
+                TestUtils.fail();
+            }
+
+            for (int strips : new int[]{1, 3, 8, 100}) {
+                ByteArrayOutputStream one = new ByteArrayOutputStream();
+                PngEncoder.write(parallel, one, strips, 1);
+                ByteArrayOutputStream many = new ByteArrayOutputStream();
+                PngEncoder.write(parallel, many, strips, 4);
+                if (!Arrays.equals(one.toByteArray(), many.toByteArray())) {
+                    System.out.println("PNG of " + strips + " strips depends on the number of threads");
+                    TestUtils.fail();
+                }
+                BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(many.toByteArray()));
+                if (decoded == null || decoded.getWidth() != parallel.getWidth()
+                        || decoded.getHeight() != parallel.getHeight()
+                        || !Arrays.equals(pixels(decoded), pixels(parallel))) {
+                    System.out.println("PNG of " + strips + " strips does not decode to the composite");
+                    TestUtils.fail();
+                }
+            }
+            TestUtils.pass();
+        } catch (IOException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        }
+    }
+
+    /**
+     * Tile of flat rectangles and noise, so it has both long runs and incompressible rows
+     */
+    private static BufferedImage tile(int type, Random random) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, type);
+        Graphics graphic = tile.getGraphics();
+        for (int i = 0; i < 20; i++) {
+            graphic.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            graphic.fillRect(random.nextInt(TILE_SIZE), random.nextInt(TILE_SIZE), random.nextInt(128), random.nextInt(128));
+        }
+        graphic.dispose();
+        for (int y = 0; y < 16; y++)
+            for (int x = 0; x < TILE_SIZE; x++)
+                tile.setRGB(x, y, random.nextInt());
+        return tile;
+    }
+
+    private static int[] pixels(BufferedImage img) {
+        int[] rgb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+        for (int i = 0; i < rgb.length; i++)
+            rgb[i] &= 0xffffff;
+        return rgb;
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RouteSessionTestSample {
+    private static final int ROUNDS = 100;
+
+    public static void main(String[] args) {
+        try {
+            System.setProperty("graph.snapshot.path", "");
+            GraphDB g = new GraphDB(TestUtils.sampleOsm(25, 29));
+            CompactGraph graph = g.compactGraph;
+            Random random = new Random(13);
+            // Each client routes between its own points and adds its own stops
+            double[][][] clients = new double[2][][];
+            List<List<List<Long>>> expected = new ArrayList<>();
+            for (int c = 0; c < clients.length; c++) {
+                clients[c] = new double[5][];
+                for (int p = 0; p < clients[c].length; p++) {
+                    int v = random.nextInt(graph.size());
+                    clients[c][p] = new double[]{graph.lon(v), graph.lat(v)};
+                }
+                expected.add(steps(g, new RouteSession(), clients[c], () -> { }));
+            }
+            if (expected.get(0).equals(expected.get(1))) {
+                System.out.println("Clients have the same routes");
+                TestUtils.fail();
+            }
+
+            // Both clients route and add stops at the same time, taking each step together, while their routes are read
+            RouteSession[] sessions = {new RouteSession("a"), new RouteSession("b")};
+            CyclicBarrier step = new CyclicBarrier(clients.length);
+            AtomicReference<String> failure = new AtomicReference<>();
+            AtomicBoolean done = new AtomicBoolean();
+            List<Thread> threads = new ArrayList<>();
+            for (int c = 0; c < clients.length; c++) {
+                int client = c;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int round = 0; round < ROUNDS && failure.get() == null; round++) {
+                            List<List<Long>> found = steps(g, sessions[client], clients[client], () -> {
+                                try {
+                                    step.await();
+                                } catch (Exception e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            });
+                            if (!found.equals(expected.get(client)))
+                                failure.compareAndSet(null, "Client " + client + " got " + found + " in round " + round);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e.toString());
+                    } finally {
+                        step.reset();
+                    }
+                }));
+            }
+            threads.add(new Thread(() -> {
+                // A drawn route is always one of the routes of its own client
+                while (!done.get() && failure.get() == null)
+                    for (int c = 0; c < clients.length; c++)
+                        if (!expected.get(c).contains(sessions[c].getRoute()))
+                            failure.compareAndSet(null, "Client " + c + " draws " + sessions[c].getRoute());
+            }));
+            for (Thread thread : threads)
+                thread.start();
+            for (int t = 0; t < clients.length; t++)
+                threads.get(t).join();
+            done.set(true);
+            threads.get(clients.length).join();
+            if (failure.get() != null) {
+                System.out.println(failure.get());
+                TestUtils.fail();
+            }
+            TestUtils.pass();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            TestUtils.fail();
+        }
+    }
+
+    /**
+     * Clear the session, route between the first two points and add the others as stops
+     * @param between: run before each step
+     * @return (List) route of the session after each step, starting with the cleared one
+     */
+    private static List<List<Long>> steps(GraphDB g, RouteSession session, double[][] points, Runnable between) {
+        List<List<Long>> routes = new ArrayList<>();
+        between.run();
+        Router.clearRoute(session);
+        routes.add(session.getRoute());
+        between.run();
+        List<Long> route = Router.shortestPath(g, session, points[0][0], points[0][1], points[1][0], points[1][1],
+                Router.Mode.DIJKSTRA);
+        routes.add(Collections.unmodifiableList(new ArrayList<>(route)));
+        for (int p = 2; p < points.length; p++) {
+            between.run();
+            routes.add(Router.addStop(g, session, points[p][1], points[p][0], false));
+        }
+        // What is drawn is the route last returned
+        if (!session.getRoute().equals(routes.get(routes.size() - 1)))
+            routes.add(session.getRoute());
+        return routes;
+    }
+}
@@ -32,13 +32,15 @@ public class ShortestPathTestSample {
 
 
     public static void main(String[] args) {
+        // Mode under test can be given as the first argument, e.g. "astar"
+        Router.Mode mode = Enums.parse(args.length > 0 ? args[0] : null, Router.DEFAULT_MODE);
         GraphDB graph = new GraphDB("berkeley.osm");
         ObjectMapper mapper = new ObjectMapper();
         Gson gson = new Gson();
         try {
             Route[] entries = mapper.readValue(new File("routing_sample.json"), Route[].class);
             for (Route r : entries) {
-                List<Long> test = Router.shortestPath(graph, r.input.stlon, r.input.stlat, r.input.destlon, r.input.destlat);
+                List<Long> test = Router.shortestPath(graph, r.input.stlon, r.input.stlat, r.input.destlon, r.input.destlat, mode);
                 if (!test.equals(r.output)) {
                     System.out.println("Expected: '" + gson.toJson(r.output) + "'\nGot: '" + gson.toJson(test) + "'");
                     System.out.println("For: '" + gson.toJson(r.input) + "'\n");
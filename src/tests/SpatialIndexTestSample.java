@@ -0,0 +1,59 @@
+import java.util.Arrays;
+import java.util.Random;
+
+public class SpatialIndexTestSample {
+
+    public static void main(String[] args) {
+        Random random = new Random(3);
+        for (int n : new int[]{0, 1, 2, 7, 100, 5000}) {
+            double[] lats = new double[n], lons = new double[n];
+            for (int i = 0; i < n; i++) {
+                // Coarse coordinates so many points share a latitude or longitude, and some coincide
+                lats[i] = 37.82 + random.nextInt(200) * 0.0004;
+                lons[i] = -122.30 + random.nextInt(200) * 0.0004;
+            }
+            SpatialIndex index = new SpatialIndex(lats, lons);
+            for (int q = 0; q < 300; q++) {
+                double lat = 37.80 + random.nextDouble() * 0.12;
+                double lon = -122.32 + random.nextDouble() * 0.12;
+                double[] distances = new double[n];
+                for (int i = 0; i < n; i++)
+                    distances[i] = squaredDistance(lats[i], lons[i], lat, lon);
+                double[] sorted = distances.clone();
+                Arrays.sort(sorted);
+
+                int nearest = index.nearest(lon, lat);
+                if (n == 0 ? nearest != -1 : distances[nearest] != sorted[0]) {
+                    System.out.println("Nearest of " + lat + ", " + lon + " among " + n + " points is not " + nearest);
+                    TestUtils.fail();
+                }
+                for (int k : new int[]{1, 5, n + 3}) {
+                    int[] found = index.kNearest(lon, lat, k);
+                    if (found.length != Math.min(k, n)) {
+                        System.out.println("Expected " + Math.min(k, n) + " points, got " + found.length);
+                        TestUtils.fail();
+                    }
+                    // Ties may come in any order, their distances may not
+                    for (int i = 0; i < found.length; i++) {
+                        if (distances[found[i]] != sorted[i]) {
+                            System.out.println("Point " + i + " of the " + k + " nearest to " + lat + ", " + lon
+                                    + " is " + found[i]);
+                            TestUtils.fail();
+                        }
+                    }
+                    if (Arrays.stream(found).distinct().count() != found.length) {
+                        System.out.println("Repeated points in " + Arrays.toString(found));
+                        TestUtils.fail();
+                    }
+                }
+            }
+        }
+        TestUtils.pass();
+    }
+
+    private static double squaredDistance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = lat1 - lat2;
+        double dLon = lon1 - lon2;
+        return dLat * dLat + dLon * dLon;
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.Arrays;
+import java.util.Random;
+
+public class StopOrderTestSample {
+    private static double best;
+
+    public static void main(String[] args) {
+        Random random = new Random(13);
+        // Held-Karp against every permutation, with asymmetric costs and missing paths
+        for (int t = 0; t < 300; t++) {
+            int k = random.nextInt(9);
+            double[][] cost = costs(k, random, true);
+            int[] stops = new int[k];
+            for (int i = 0; i < k; i++)
+                stops[i] = i + 1;
+            best = Double.POSITIVE_INFINITY;
+            permute(cost, stops, 0);
+            int[] order = StopOrder.order(cost, 1000000);
+            if (!isPermutation(order, k) || !(StopOrder.total(cost, order) == best
+                    || Math.abs(StopOrder.total(cost, order) - best) < 1e-12)) {
+                System.out.println("Order " + Arrays.toString(order) + " costs " + StopOrder.total(cost, order)
+                        + "\nExpected: '" + best + "'");
+                TestUtils.fail();
+            }
+        }
+
+        // The heuristic never returns an order worse than the given one, even without time to improve it
+        for (int t = 0; t < 100; t++) {
+            int k = StopOrder.MAX_EXACT_STOPS + 1 + random.nextInt(30);
+            double[][] cost = costs(k, random, t % 2 == 0);
+            // Every other time the given order is an improved one, which the nearest neighbor tour rarely beats
+            if (t % 4 < 2)
+                cost = relabel(cost, StopOrder.order(cost, 5000000));
+            int[] given = new int[k];
+            for (int i = 0; i < k; i++)
+                given[i] = i + 1;
+            for (long budget : new long[]{0, 5000000}) {
+                int[] order = StopOrder.order(cost, budget);
+                if (!isPermutation(order, k) || StopOrder.total(cost, order) > StopOrder.total(cost, given)) {
+                    System.out.println("Order " + Arrays.toString(order) + " costs " + StopOrder.total(cost, order)
+                            + ", more than the given order at " + StopOrder.total(cost, given));
+                    TestUtils.fail();
+                }
+            }
+        }
+        TestUtils.pass();
+    }
+
+    /**
+     * Random costs between k stops and the start and end. Asymmetric costs have missing paths, the
+     * others are distances between points in the plane
+     */
+    private static double[][] costs(int k, Random random, boolean asymmetric) {
+        double[][] points = new double[k + 2][2];
+        for (double[] point : points) {
+            point[0] = random.nextDouble();
+            point[1] = random.nextDouble();
+        }
+        double[][] cost = new double[k + 2][k + 2];
+        for (int i = 0; i < k + 2; i++) {
+            for (int j = 0; j < k + 2; j++) {
+                if (i == j)
+                    continue;
+                if (asymmetric)
+                    cost[i][j] = random.nextInt(10) == 0 ? Double.POSITIVE_INFINITY : random.nextDouble();
+                else
+                    cost[i][j] = Math.hypot(points[i][0] - points[j][0], points[i][1] - points[j][1]);
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Costs with the stops renumbered so that stop i + 1 is stop order[i] before
+     */
+    private static double[][] relabel(double[][] cost, int[] order) {
+        int n = cost.length;
+        int[] point = new int[n];
+        point[n - 1] = n - 1;
+        for (int i = 0; i < order.length; i++)
+            point[i + 1] = order[i];
+        double[][] relabeled = new double[n][n];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                relabeled[i][j] = cost[point[i]][point[j]];
+        return relabeled;
+    }
+
+    private static void permute(double[][] cost, int[] stops, int from) {
+        if (from == stops.length) {
+            best = Math.min(best, StopOrder.total(cost, stops));
+            return;
+        }
+        for (int i = from; i < stops.length; i++) {
+            swap(stops, from, i);
+            permute(cost, stops, from + 1);
+            swap(stops, from, i);
+        }
+    }
+
+    private static void swap(int[] stops, int i, int j) {
+        int stop = stops[i];
+        stops[i] = stops[j];
+        stops[j] = stop;
+    }
+
+    private static boolean isPermutation(int[] order, int k) {
+        int[] sorted = order.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++)
+            if (sorted[i] != i + 1)
+                return false;
+        return sorted.length == k;
+    }
+}
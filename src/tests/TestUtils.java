@@ -1,8 +1,14 @@
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 
 
 public class TestUtils {
@@ -30,4 +36,103 @@ public class TestUtils {
 		System.out.println("FAIL");
 		System.exit(0);
 	}
+
+	/**
+	 * Write a random street grid as an OSM file: ways of several highway types, some of them one-way
+	 * or reversed, named places, nodes no way uses and closed ways that are not highways
+	 * @param size: number of rows and columns of the grid
+	 * @param seed: seed of the random layout
+	 * @return (String) path of a temporary file, deleted on exit
+	 */
+	public static String sampleOsm(int size, long seed) throws IOException {
+		Random random = new Random(seed);
+		String[] names = {"Taco Bell", "Tea Garden", "Top Dog", "Caf\u00e9 &amp; Bar", "Peet&apos;s Coffee", "Main St. Market"};
+		String[] highways = {"residential", "primary", "secondary", "footway", "service", "motorway_link"};
+		File file = File.createTempFile("sample", ".osm");
+		file.deleteOnExit();
+		try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+			out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+			out.println("<osm version=\"0.6\">");
+			long[][] ids = new long[size][size];
+			long id = 1000;
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					id += 1 + random.nextInt(5);
+					ids[i][j] = id;
+					double lat = 37.89 - (i + 0.5 + 0.6 * random.nextDouble() - 0.3) * 0.07 / size;
+					double lon = -122.30 + (j + 0.5 + 0.6 * random.nextDouble() - 0.3) * 0.09 / size;
+					out.printf(Locale.ROOT, "  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"", id, lat, lon);
+					if (random.nextInt(20) == 0)
+						out.printf(">\n    <tag k=\"name\" v=\"%s %d\"/>\n  </node>\n", names[random.nextInt(names.length)], i);
+					else
+						out.println("/>");
+				}
+			}
+			for (int k = 0; k < size * 4; k++)
+				out.printf(Locale.ROOT, "  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"/>%n", ++id, 37.82 + 0.07 * random.nextDouble(),
+						-122.30 + 0.09 * random.nextDouble());
+			long way = 1;
+			for (int line = 0; line < 2 * size; line++) {
+				long[] nodes = new long[size];
+				for (int k = 0; k < size; k++)
+					nodes[k] = line < size ? ids[line][k] : ids[k][line - size];
+				// Split each row and column into ways of a few nodes
+				for (int a = 0; a < size - 1; ) {
+					int b = Math.min(size, a + 2 + random.nextInt(8));
+					boolean reversed = random.nextBoolean();
+					out.printf("  <way id=\"%d\">%n", way++);
+					for (int k = a; k < b; k++)
+						out.printf("    <nd ref=\"%d\"/>%n", nodes[reversed ? a + b - 1 - k : k]);
+					out.printf("    <tag k=\"highway\" v=\"%s\"/>%n", highways[random.nextInt(highways.length)]);
+					if (random.nextInt(5) == 0)
+						out.println("    <tag k=\"oneway\" v=\"yes\"/>");
+					if (random.nextBoolean())
+						out.printf("    <tag k=\"name\" v=\"%s %d\"/>%n", line < size ? "Row St" : "Column Ave", line);
+					out.println("  </way>");
+					a = b - 1;
+				}
+			}
+			for (int k = 0; k < size; k++) {
+				int i = random.nextInt(size - 1), j = random.nextInt(size - 1);
+				out.printf("  <way id=\"%d\">%n    <nd ref=\"%d\"/>%n    <nd ref=\"%d\"/>%n    <nd ref=\"%d\"/>%n    <nd ref=\"%d\"/>%n"
+						+ "    <tag k=\"building\" v=\"yes\"/>%n  </way>%n", way++, ids[i][j], ids[i][j + 1], ids[i + 1][j + 1], ids[i][j]);
+			}
+			out.println("</osm>");
+		}
+		return file.getPath();
+	}
+
+	/**
+	 * Cost of a route along the edges of a graph
+	 * @param graph: graph object
+	 * @param route: vertex ids
+	 * @return (double) sum of the lightest edge weights between consecutive vertices, NaN if two are not joined by an edge
+	 */
+	public static double pathCost(CompactGraph graph, List<Long> route) {
+		double cost = 0.0;
+		for (int i = 1; i < route.size(); i++) {
+			int from = graph.indexOf(route.get(i - 1)), to = graph.indexOf(route.get(i));
+			double weight = Double.NaN;
+			for (int e = graph.firstEdge(from); e < graph.lastEdge(from); e++)
+				if (graph.target(e) == to && !(graph.weight(e) >= weight))
+					weight = graph.weight(e);
+			cost += weight;
+		}
+		return cost;
+	}
+
+	/**
+	 * Whether a route is as short as the correct one. Routes of equal cost may differ, their costs may not
+	 * @param graph: graph object
+	 * @param correct: vertex ids of a shortest route
+	 * @param test: vertex ids of the route to check
+	 * @return (boolean) true if both are empty, or test joins the same endpoints along edges at the same cost
+	 */
+	public static boolean sameRouteCost(CompactGraph graph, List<Long> correct, List<Long> test) {
+		if (correct.isEmpty() || test.isEmpty())
+			return correct.isEmpty() && test.isEmpty();
+		double correctCost = pathCost(graph, correct), testCost = pathCost(graph, test);
+		return !Double.isNaN(testCost) && Math.abs(correctCost - testCost) <= 1e-9 * Math.max(1.0, correctCost)
+				&& test.get(0).equals(correct.get(0)) && test.get(test.size() - 1).equals(correct.get(correct.size() - 1));
+	}
 }